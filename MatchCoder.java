@@ -1,18 +1,52 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
+import javax.management.ObjectName;
 
 
 public class MatchCoder
@@ -22,24 +56,164 @@ public class MatchCoder
 
   //  
 
-  private static final class ResourceLoader
+  // Source of knowledge base resources: text resources in classpath or
+  // in data folders, or the compiled artifact
+
+  public static abstract class KnowledgeBase
+  {
+    // Resources which failed to load
+    private final Set<String> failedResourceSet = ConcurrentHashMap.newKeySet();
+
+    // Loads tab separated records of the resource
+    boolean load(String resourceName, Function<String[], Boolean> recordLoader)
+    {
+      boolean isLoaded = loadRecords(resourceName, recordLoader);
+      if(!isLoaded)
+        failedResourceSet.add(resourceName);
+      return isLoaded;
+    }
+
+    abstract boolean loadRecords(String resourceName, Function<String[], Boolean> recordLoader);
+
+    List<String> getFailedResourceList()
+    {
+      List<String> failedResourceList = new ArrayList<>(failedResourceSet);
+      Collections.sort(failedResourceList);
+      return failedResourceList;
+    }
+
+    // Packed section of the resource if the source keeps one
+    ByteBuffer getSection(String resourceName, byte type)
+    {
+      return null;
+    }
+
+    public abstract String getVersion();
+
+    public static KnowledgeBase fromClasspath()
+    {
+      return new TextKnowledgeBase();
+    }
+
+    public static KnowledgeBase fromFolders(List<Path> folderList)
+      throws IOException
+    {
+      return new TextKnowledgeBase(folderList);
+    }
+
+    public static KnowledgeBase fromArtifact(Path path)
+      throws IOException
+    {
+      return KnowledgeBaseArtifact.open(path);
+    }
+
+    // Artifact file named by matchcoder.kb system property, else artifact
+    // packed into the jar, else text resources in classpath. Missing or
+    // broken artifact leaves text resources to be loaded
+    public static KnowledgeBase getDefault()
+    {
+      String fileName = System.getProperty("matchcoder.kb");
+      try {
+        KnowledgeBaseArtifact artifact = (fileName != null ?
+          KnowledgeBaseArtifact.open(Paths.get(fileName)) :
+          KnowledgeBaseArtifact.openResource());
+        if(artifact != null)
+          return artifact;
+      }
+      catch(IOException e) {
+        logger.warning((fileName != null ? fileName : KnowledgeBaseArtifact.RESOURCE_NAME) +
+                       ": " + e.getMessage() + ", loading text resources");
+      }
+      return fromClasspath();
+    }
+  }
+
+  private static final class TextKnowledgeBase
+    extends KnowledgeBase
   {
-    public static boolean load(String resourceName, Function<String, Boolean> lineLoader)
+    private static final List<String> suffixList = Arrays.asList(
+      ".rgx.txt", ".phx.txt", ".sch.txt", ".vcb.txt", ".forest.txt"
+    );
+
+    // Null for classpath
+    private List<Path> folderList;
+    private String version;
+
+    public TextKnowledgeBase()
+    {
+      version = "classpath";
+    }
+
+    // Version of the folders is the checksum of all the resources in them
+    public TextKnowledgeBase(List<Path> folderList)
+      throws IOException
+    {
+      this.folderList = new ArrayList<>(folderList);
+      CRC32 checksum = new CRC32();
+      for(String resourceName: getResourceNameList()) {
+        checksum.update(resourceName.getBytes(StandardCharsets.UTF_8));
+        checksum.update(Files.readAllBytes(find(resourceName)));
+      }
+      version = String.format("%08x", checksum.getValue());
+    }
+
+    // Resources found in the folders, the first folder wins on name clash
+    public List<String> getResourceNameList()
+      throws IOException
+    {
+      List<String> resourceNameList = new ArrayList<>();
+      for(Path folder: folderList) {
+        String[] names = folder.toFile().list();
+        if(names == null)
+          throw new IOException(folder + ": folder not found");
+        Arrays.sort(names);
+        for(String name: names) {
+          for(String suffix: suffixList) {
+            if(name.endsWith(suffix) && !resourceNameList.contains(name)) {
+              resourceNameList.add(name);
+              break;
+            }
+          }
+        }
+      }
+      return resourceNameList;
+    }
+
+    private Path find(String resourceName)
+    {
+      for(Path folder: folderList) {
+        Path path = folder.resolve(resourceName);
+        if(Files.isRegularFile(path))
+          return path;
+      }
+      return null;
+    }
+
+    @Override
+    boolean loadRecords(String resourceName, Function<String[], Boolean> recordLoader)
     {
       try {
+        InputStream stream;
+        if(folderList == null)
+          stream = TextKnowledgeBase.class.getResourceAsStream(resourceName);
+        else {
+          Path path = find(resourceName);
+          stream = (path != null ? Files.newInputStream(path) : null);
+        }
+        if(stream == null)
+          throw new IOException("resource not found");
+
         try (
           BufferedReader in = 
             new BufferedReader(
-              new InputStreamReader(
-                ResourceLoader.class.getResourceAsStream(resourceName), "utf8"
-              )
+              new InputStreamReader(stream, "utf8")
             )
         ) {
           while(true) {
             String line = in.readLine();
             if(line == null)
               break;
-            if(!lineLoader.apply(line))
+            if(!recordLoader.apply(line.split("\t")))
               return false;
           }
         }
@@ -50,8 +224,459 @@ public class MatchCoder
       }
       return true;
     }
+
+    @Override
+    public String getVersion()
+    {
+      return version;
+    }
+  }
+
+  // Knowledge base precompiled into a single binary file to be loaded with
+  // no parsing. The file holds magic, format version, knowledge base version
+  // and directory of sections (name, type, offset, length and CRC32 of
+  // each), followed by the sections. Text resources are kept there as
+  // already split records, tokenizer forests as their packed tables
+
+  private static final class KnowledgeBaseArtifact
+    extends KnowledgeBase
+  {
+    private static final int MAGIC = 0x4d434b42; // "MCKB"
+    private static final int FORMAT_VERSION = 1;
+    public static final String RESOURCE_NAME = "MatchCoder.kb";
+
+    public static final byte RECORD_SECTION = 1;
+    public static final byte FOREST_SECTION = 2;
+
+    private String version;
+    private Map<String, ByteBuffer> sectionMap;
+    private Map<String, Byte> sectionTypeMap;
+
+    public KnowledgeBaseArtifact(String sourceName, ByteBuffer buffer)
+      throws IOException
+    {
+      sectionMap = new HashMap<>();
+      sectionTypeMap = new HashMap<>();
+      try {
+        if(buffer.getInt() != MAGIC)
+          throw new IOException("not a knowledge base artifact");
+        int formatVersion = buffer.getInt();
+        if(formatVersion != FORMAT_VERSION)
+          throw new IOException("unsupported format version " + formatVersion);
+        version = readString(buffer);
+
+        int sectionCount = buffer.getInt();
+        for(int i = 0; i < sectionCount; ++i) {
+          String name = readString(buffer);
+          byte type = buffer.get();
+          int offset = buffer.getInt();
+          int length = buffer.getInt();
+          int checksum = buffer.getInt();
+
+          ByteBuffer section = buffer.duplicate();
+          section.limit(offset + length);
+          section.position(offset);
+          section = section.slice();
+          if(getChecksum(section) != checksum)
+            throw new IOException(name + ": checksum mismatch");
+
+          sectionMap.put(name, section);
+          sectionTypeMap.put(name, type);
+        }
+      }
+      catch(BufferUnderflowException | IllegalArgumentException e) {
+        throw new IOException("truncated artifact");
+      }
+
+      logger.info(sourceName + ": loaded knowledge base version " + version +
+                  ", " + sectionMap.size() + " sections");
+    }
+
+    public static KnowledgeBaseArtifact open(Path path)
+      throws IOException
+    {
+      // Mapping stays valid after the channel is closed
+      try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        return new KnowledgeBaseArtifact(path.toString(),
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+    }
+
+    // Resource can't be mapped being inside of jar or database, so it is
+    // read into memory. Gives null if there is no such resource
+    public static KnowledgeBaseArtifact openResource()
+      throws IOException
+    {
+      try(InputStream in = KnowledgeBaseArtifact.class.getResourceAsStream(RESOURCE_NAME)) {
+        if(in == null)
+          return null;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[65536];
+        for(int count; (count = in.read(chunk)) >= 0;)
+          bytes.write(chunk, 0, count);
+        return new KnowledgeBaseArtifact(RESOURCE_NAME, ByteBuffer.wrap(bytes.toByteArray()));
+      }
+    }
+
+    @Override
+    public String getVersion()
+    {
+      return version;
+    }
+
+    public boolean hasSection(String name, byte type)
+    {
+      Byte sectionType = sectionTypeMap.get(name);
+      return (sectionType != null && sectionType == type);
+    }
+
+    @Override
+    ByteBuffer getSection(String name, byte type)
+    {
+      if(!hasSection(name, type))
+        return null;
+      return sectionMap.get(name).duplicate();
+    }
+
+    @Override
+    boolean loadRecords(String name, Function<String[], Boolean> recordLoader)
+    {
+      ByteBuffer section = getSection(name, RECORD_SECTION);
+      if(section == null) {
+        logger.severe(name + ": not found in knowledge base artifact");
+        return false;
+      }
+      int recordCount = section.getInt();
+      for(int i = 0; i < recordCount; ++i) {
+        String[] parts = new String[section.getInt()];
+        for(int j = 0; j < parts.length; ++j)
+          parts[j] = readString(section);
+        if(!recordLoader.apply(parts))
+          return false;
+      }
+      return true;
+    }
+
+    // Compiles all the text resources of the folders into the artifact
+    // file. Version defaults to the checksum of the whole content
+    public static void compile(Path path, String version, TextKnowledgeBase source)
+      throws IOException
+    {
+      List<String> resourceNameList = source.getResourceNameList();
+      List<byte[]> sectionList = new ArrayList<>();
+      List<Byte> sectionTypeList = new ArrayList<>();
+      CRC32 contentChecksum = new CRC32();
+
+      for(String resourceName: resourceNameList) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        if(resourceName.endsWith(".forest.txt")) {
+          // Range count is not stored in the forest, so it is taken from
+          // the first entry
+          int[] rangeCount = { 0 };
+          source.load(resourceName, parts ->
+          {
+            if(parts.length == 4 && rangeCount[0] == 0)
+              rangeCount[0] = parts[3].split(",").length / 2;
+            return true;
+          });
+          TokenizerForest forest = new TokenizerForest(source, resourceName, rangeCount[0]);
+          if(forest.keyList.length == 0)
+            throw new IOException(resourceName + ": no forest entries loaded");
+          forest.save(out);
+          sectionTypeList.add(FOREST_SECTION);
+        }
+        else {
+          List<String[]> recordList = new ArrayList<>();
+          if(!source.load(resourceName, parts -> recordList.add(parts)))
+            throw new IOException(resourceName + ": can't load resource");
+          out.writeInt(recordList.size());
+          for(String[] parts: recordList) {
+            out.writeInt(parts.length);
+            for(String part: parts)
+              writeString(out, part);
+          }
+          sectionTypeList.add(RECORD_SECTION);
+        }
+
+        byte[] section = bytes.toByteArray();
+        sectionList.add(section);
+        contentChecksum.update(section);
+      }
+
+      if(version == null)
+        version = String.format("%08x", contentChecksum.getValue());
+
+      ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+      DataOutputStream header = new DataOutputStream(headerBytes);
+      header.writeInt(MAGIC);
+      header.writeInt(FORMAT_VERSION);
+      writeString(header, version);
+      header.writeInt(sectionList.size());
+
+      // Directory entry takes the name and then 13 bytes
+      int offset = header.size();
+      for(String resourceName: resourceNameList)
+        offset += 4 + resourceName.length() * 2 + 13;
+
+      for(int i = 0; i < sectionList.size(); ++i) {
+        byte[] section = sectionList.get(i);
+        writeString(header, resourceNameList.get(i));
+        header.writeByte(sectionTypeList.get(i));
+        header.writeInt(offset);
+        header.writeInt(section.length);
+        header.writeInt(getChecksum(ByteBuffer.wrap(section)));
+        offset += section.length;
+      }
+
+      try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+        headerBytes.writeTo(out);
+        for(byte[] section: sectionList)
+          out.write(section);
+      }
+
+      logger.info(path + ": compiled knowledge base version " + version +
+                  ", " + sectionList.size() + " sections");
+    }
+
+    private static int getChecksum(ByteBuffer buffer)
+    {
+      CRC32 checksum = new CRC32();
+      checksum.update(buffer.duplicate());
+      return (int)checksum.getValue();
+    }
+
+    public static void writeString(DataOutputStream out, String string)
+      throws IOException
+    {
+      out.writeInt(string.length());
+      out.writeChars(string);
+    }
+
+    public static String readString(ByteBuffer buffer)
+    {
+      char[] chars = new char[buffer.getInt()];
+      buffer.asCharBuffer().get(chars);
+      buffer.position(buffer.position() + chars.length * 2);
+      return new String(chars);
+    }
+
+    public static void writeIntList(DataOutputStream out, int[] list)
+      throws IOException
+    {
+      out.writeInt(list.length);
+      for(int value: list)
+        out.writeInt(value);
+    }
+
+    public static int[] readIntList(ByteBuffer buffer)
+    {
+      int[] list = new int[buffer.getInt()];
+      buffer.asIntBuffer().get(list);
+      buffer.position(buffer.position() + list.length * 4);
+      return list;
+    }
+
+    public static void writeLongList(DataOutputStream out, long[] list)
+      throws IOException
+    {
+      out.writeInt(list.length);
+      for(long value: list)
+        out.writeLong(value);
+    }
+
+    public static long[] readLongList(ByteBuffer buffer)
+    {
+      long[] list = new long[buffer.getInt()];
+      buffer.asLongBuffer().get(list);
+      buffer.position(buffer.position() + list.length * 8);
+      return list;
+    }
   }
   
+  // Scratch space of the thread reused from call to call, so that steady
+  // state matchcoding allocates little more than strings it produces.
+  // Every user has fields of its own, since their calls nest. Buffers
+  // grown by unusually long input are not kept
+
+  private static final class Workspace
+  {
+    private static final int MAX_KEPT_LENGTH = 4096;
+
+    private static final ThreadLocal<Workspace> threadWorkspace =
+      ThreadLocal.withInitial(Workspace::new);
+
+    private StringBuilder phoneticsBuilder = new StringBuilder();
+    private StringBuilder translitBuilder = new StringBuilder();
+    private StringBuilder codeBuilder = new StringBuilder();
+
+    public final ArrayList<String> tokenList = new ArrayList<>();
+    public final ArrayList<String> upperTokenList = new ArrayList<>();
+    private final ArrayList<List<TokenCategory>> tokenCategoryList = new ArrayList<>();
+    private char[] upperBuffer = new char[256];
+
+    public final Metrics.Probe probe = new Metrics.Probe();
+
+    // Transliterator
+    private long[] matchList = new long[16];
+    private int[] stateList = new int[64];
+    private int[] ruleList = new int[64];
+    private String[] replaceStrList = new String[64];
+
+    // Best path search
+    private int[] codeIdList = new int[64];
+    private int[] codeIdStartList = new int[64];
+    private int[] boundList = new int[64];
+
+    // Phonetics. Matchers are of each phonetics in use by the thread, and
+    // are dropped along with phonetics of the knowledge base reloaded
+    private final Map<Phonetics, Phonetics.RegexState> regexStateMap = new WeakHashMap<>();
+    private final ArrayList<Phonetics.PhoneticReplacer> phoneticReplacerList = new ArrayList<>();
+
+    public static Workspace get()
+    {
+      return threadWorkspace.get();
+    }
+
+    private static StringBuilder reset(StringBuilder builder)
+    {
+      if(builder.capacity() > MAX_KEPT_LENGTH)
+        return new StringBuilder();
+      builder.setLength(0);
+      return builder;
+    }
+
+    public StringBuilder getPhoneticsBuilder()
+    {
+      return (phoneticsBuilder = reset(phoneticsBuilder));
+    }
+
+    public StringBuilder getTranslitBuilder()
+    {
+      return (translitBuilder = reset(translitBuilder));
+    }
+
+    public StringBuilder getCodeBuilder()
+    {
+      return (codeBuilder = reset(codeBuilder));
+    }
+
+    // Empty category list per token
+    public List<List<TokenCategory>> getTokenCategoryList(int tokenCount)
+    {
+      while(tokenCategoryList.size() < tokenCount)
+        tokenCategoryList.add(new ArrayList<TokenCategory>());
+      if(tokenCategoryList.size() > tokenCount)
+        tokenCategoryList.subList(tokenCount, tokenCategoryList.size()).clear();
+      for(List<TokenCategory> categoryList: tokenCategoryList)
+        categoryList.clear();
+      return tokenCategoryList;
+    }
+
+    public char[] getUpperBuffer(int length)
+    {
+      if(upperBuffer.length < length)
+        upperBuffer = new char[Math.max(length, upperBuffer.length * 2)];
+      return upperBuffer;
+    }
+
+    public long[] getMatchList(int length)
+    {
+      if(length > MAX_KEPT_LENGTH)
+        return new long[length];
+      if(matchList.length < length)
+        matchList = new long[length];
+      return matchList;
+    }
+
+    // Given back by Transliterator grown
+    public void putMatchList(long[] list)
+    {
+      if(list.length <= MAX_KEPT_LENGTH)
+        matchList = list;
+    }
+
+    // Zero filled up to the length
+    public int[] getStateList(int length)
+    {
+      if(length > MAX_KEPT_LENGTH)
+        return new int[length];
+      if(stateList.length < length)
+        stateList = new int[length];
+      else
+        Arrays.fill(stateList, 0, length, 0);
+      return stateList;
+    }
+
+    public int[] getRuleList(int length)
+    {
+      if(length > MAX_KEPT_LENGTH)
+        return new int[length];
+      if(ruleList.length < length)
+        ruleList = new int[length];
+      return ruleList;
+    }
+
+    // Null filled up to the length
+    public String[] getReplaceStrList(int length)
+    {
+      if(length > MAX_KEPT_LENGTH)
+        return new String[length];
+      if(replaceStrList.length < length)
+        replaceStrList = new String[length];
+      else
+        Arrays.fill(replaceStrList, 0, length, null);
+      return replaceStrList;
+    }
+
+    public int[] getCodeIdList(int length)
+    {
+      if(length > MAX_KEPT_LENGTH)
+        return new int[length];
+      if(codeIdList.length < length)
+        codeIdList = new int[length];
+      return codeIdList;
+    }
+
+    public int[] getCodeIdStartList(int length)
+    {
+      if(length > MAX_KEPT_LENGTH)
+        return new int[length];
+      if(codeIdStartList.length < length)
+        codeIdStartList = new int[length];
+      return codeIdStartList;
+    }
+
+    // Zero filled up to the length
+    public int[] getBoundList(int length)
+    {
+      if(length > MAX_KEPT_LENGTH)
+        return new int[length];
+      if(boundList.length < length)
+        boundList = new int[length];
+      else
+        Arrays.fill(boundList, 0, length, 0);
+      return boundList;
+    }
+
+    public Phonetics.RegexState getRegexState(Phonetics phonetics)
+    {
+      Phonetics.RegexState regexState = regexStateMap.get(phonetics);
+      if(regexState == null) {
+        regexState = phonetics.newRegexState();
+        regexStateMap.put(phonetics, regexState);
+      }
+      return regexState;
+    }
+
+    public ArrayList<Phonetics.PhoneticReplacer> getPhoneticReplacerList()
+    {
+      phoneticReplacerList.clear();
+      return phoneticReplacerList;
+    }
+  }
+
   //
   
   @FunctionalInterface
@@ -94,35 +719,209 @@ public class MatchCoder
   private static final class Replacer
     implements StringOperator
   {
+    private static final String WHITESPACE_CHARS = " \t\n\u000B\f\r";
+
     private Pattern pattern;
     private String replaceStr;
+    private ThreadLocal<Matcher> threadMatcher;
+    // Groups of chars, of each one of which at least must be in the string
+    // for the pattern to match, or null if the pattern is beyond analysis
+    private List<String> requiredCharsList;
+    private final LongAdder skipCount = new LongAdder();
+    private final LongAdder applyCount = new LongAdder();
 
     public Replacer(String findStr, String replaceStr)
     {
       this.pattern = Pattern.compile(findStr);
       this.replaceStr = replaceStr;
+      threadMatcher = ThreadLocal.withInitial(() -> pattern.matcher(""));
+      requiredCharsList = findRequiredChars(findStr);
+    }
+
+    public String getFindStr()
+    {
+      return pattern.pattern();
+    }
+
+    public String getReplaceStr()
+    {
+      return replaceStr;
+    }
+
+    public List<String> getRequiredCharsList()
+    {
+      return requiredCharsList;
+    }
+
+    public long getSkipCount()
+    {
+      return skipCount.sum();
+    }
+
+    public long getApplyCount()
+    {
+      return applyCount.sum();
+    }
+
+    // Looks through the top level sequence of the pattern for literal chars
+    // and \s not allowed to repeat zero times. Groups and classes are
+    // passed by. Under case insensitivity only ASCII non-letters are taken,
+    // having no case variants
+    private static List<String> findRequiredChars(String findStr)
+    {
+      List<String> resultList = new ArrayList<>();
+      boolean isCaseInsensitive = false;
+      int pos = 0;
+      if(findStr.startsWith("(?")) {
+        int endPos = findStr.indexOf(')');
+        if(endPos < 0)
+          return null;
+        String flags = findStr.substring(2, endPos);
+        if(!flags.matches("[iumsd]+"))
+          return null;
+        isCaseInsensitive = flags.contains("i");
+        pos = endPos + 1;
+      }
+
+      while(pos < findStr.length()) {
+        char ch = findStr.charAt(pos++);
+        String atom = null;
+        if(ch == '|' || ch == ')' || ch == '*' || ch == '+' || ch == '?' || ch == '{')
+          return null;
+        else if(ch == '(') {
+          if(findStr.startsWith("?", pos) && !findStr.startsWith("?:", pos))
+            return null;
+          pos = skipGroup(findStr, pos);
+        }
+        else if(ch == '[')
+          pos = skipClass(findStr, pos);
+        else if(ch == '\\') {
+          if(pos >= findStr.length())
+            return null;
+          char escaped = findStr.charAt(pos++);
+          if(escaped == 's')
+            atom = WHITESPACE_CHARS;
+          else if("dwSDWbBAzZG".indexOf(escaped) >= 0)
+            atom = null;
+          else if(Character.isLetterOrDigit(escaped))
+            return null;
+          else
+            atom = String.valueOf(escaped);
+        }
+        else if(ch != '.' && ch != '^' && ch != '$')
+          atom = String.valueOf(ch);
+        if(pos < 0)
+          return null;
+
+        boolean isRequired = true;
+        if(pos < findStr.length()) {
+          char quantifier = findStr.charAt(pos);
+          if(quantifier == '?' || quantifier == '*') {
+            isRequired = false;
+            ++pos;
+          }
+          else if(quantifier == '+')
+            ++pos;
+          else if(quantifier == '{') {
+            int endPos = findStr.indexOf('}', pos);
+            if(endPos < 0)
+              return null;
+            isRequired = !findStr.substring(pos + 1, endPos).matches("0*(,.*)?");
+            pos = endPos + 1;
+          }
+          if(quantifier == '?' || quantifier == '*' || quantifier == '+' || quantifier == '{') {
+            if(pos < findStr.length() && (findStr.charAt(pos) == '?' || findStr.charAt(pos) == '+'))
+              ++pos;
+          }
+        }
+
+        if(atom != null && atom.length() == 1 && isCaseInsensitive &&
+           (atom.charAt(0) >= 0x80 || Character.isLetter(atom.charAt(0))))
+          atom = null;
+        if(atom != null && isRequired && !resultList.contains(atom))
+          resultList.add(atom);
+      }
+      return resultList;
+    }
+
+    // Position next to the group's closing parenthesis, or -1. Flags may
+    // be changed within the group, so any special group but non-capturing
+    // one is beyond analysis
+    private static int skipGroup(String findStr, int pos)
+    {
+      int depth = 1;
+      while(pos < findStr.length()) {
+        char ch = findStr.charAt(pos++);
+        if(ch == '\\')
+          ++pos;
+        else if(ch == '[')
+          pos = skipClass(findStr, pos);
+        else if(ch == '(') {
+          if(findStr.startsWith("?", pos) && !findStr.startsWith("?:", pos))
+            return -1;
+          ++depth;
+        }
+        else if(ch == ')' && --depth == 0)
+          return pos;
+        if(pos < 0)
+          return -1;
+      }
+      return -1;
+    }
+
+    // Position next to the class's closing bracket, or -1
+    private static int skipClass(String findStr, int pos)
+    {
+      int depth = 1;
+      if(pos < findStr.length() && findStr.charAt(pos) == '^')
+        ++pos;
+      if(pos < findStr.length() && findStr.charAt(pos) == ']')
+        ++pos;
+      while(pos < findStr.length()) {
+        char ch = findStr.charAt(pos++);
+        if(ch == '\\')
+          ++pos;
+        else if(ch == '[')
+          ++depth;
+        else if(ch == ']' && --depth == 0)
+          return pos;
+      }
+      return -1;
     }
 
     @Override
     public String apply(String string)
     {
-      Matcher matcher = pattern.matcher(string);
+      Matcher matcher = threadMatcher.get().reset(string);
       return matcher.replaceAll(replaceStr);
     }
   }
 
+  // Replacers applied in turn. Ones which surely can't match are skipped:
+  // chars required by them are looked for in the set of chars of the input,
+  // taken once and then added with chars of each replacement done
+
   private static final class ReplacerChain
     implements StringOperator
   {
-    private StringOperator operator;
-
-    public ReplacerChain(String resourceName)
+    private static final int MAX_ALPHABET_SIZE = 64;
+
+    private String resourceName;
+    private List<Replacer> replacerList;
+    // Index of a char in the alphabet of all required chars, or -1
+    private int[] charIndexTable;
+    // Masks of required char groups by replacer, each to meet the input
+    private long[][] requiredMaskTable;
+    // Masks of chars the replacement may bring in, by replacer
+    private long[] replaceMaskList;
+
+    public ReplacerChain(KnowledgeBase knowledgeBase, String resourceName)
     {
-      List<Replacer> replacerList = new ArrayList<>();
+      this.resourceName = resourceName;
+      replacerList = new ArrayList<>();
 
-      boolean isLoaded = ResourceLoader.load(resourceName, line ->
+      boolean isLoaded = knowledgeBase.load(resourceName, parts ->
       {
-        String[] parts = line.split("\t");
         if(parts.length == 2)
           replacerList.add(new Replacer(parts[0], parts[1]));  
         else if(parts.length == 1)
@@ -130,61 +929,516 @@ public class MatchCoder
         return true;
       });
 
-      if(!isLoaded) {
-        operator = StringOperator.identity();
-        return;
-      }
+      if(!isLoaded)
+        replacerList.clear();
 
-      operator = new StringOperatorChain(replacerList);
+      int prefilterCount = compilePrefilter();
+
+      if(!isLoaded)
+        return;
 
-      logger.info(resourceName + ": loaded " + replacerList.size() + " entries");
+      logger.info(resourceName + ": loaded " + replacerList.size() + " entries, " +
+                  prefilterCount + " of them prefiltered");
     }
 
-    @Override
-    public String apply(String string)
+    // Groups of chars beyond the alphabet size are not checked
+    private int compilePrefilter()
     {
-      return operator.apply(string);
+      StringBuilder alphabet = new StringBuilder();
+      requiredMaskTable = new long[replacerList.size()][];
+      int prefilterCount = 0;
+      for(int i = 0; i < replacerList.size(); ++i) {
+        List<String> requiredCharsList = replacerList.get(i).getRequiredCharsList();
+        List<Long> maskList = new ArrayList<>();
+        if(requiredCharsList != null) {
+          for(String requiredChars: requiredCharsList) {
+            long mask = 0;
+            for(char ch: requiredChars.toCharArray()) {
+              int index = alphabet.indexOf(String.valueOf(ch));
+              if(index < 0 && alphabet.length() < MAX_ALPHABET_SIZE) {
+                index = alphabet.length();
+                alphabet.append(ch);
+              }
+              if(index < 0) {
+                mask = 0;
+                break;
+              }
+              mask |= 1L << index;
+            }
+            if(mask != 0)
+              maskList.add(mask);
+          }
+        }
+        requiredMaskTable[i] = maskList.stream().mapToLong(Long::longValue).toArray();
+        if(!maskList.isEmpty())
+          ++prefilterCount;
+      }
+
+      int tableSize = 0;
+      for(int i = 0; i < alphabet.length(); ++i)
+        tableSize = Math.max(tableSize, alphabet.charAt(i) + 1);
+      charIndexTable = new int[tableSize];
+      Arrays.fill(charIndexTable, -1);
+      for(int i = 0; i < alphabet.length(); ++i)
+        charIndexTable[alphabet.charAt(i)] = i;
+
+      replaceMaskList = new long[replacerList.size()];
+      for(int i = 0; i < replacerList.size(); ++i)
+        replaceMaskList[i] = getCharMask(replacerList.get(i).getReplaceStr());
+      return prefilterCount;
     }
-  }
 
-  private static final StringOperator preprocPriv =
-    new StringOperatorChain(Arrays.asList(
-      new ReplacerChain("IRBICON Name Organization Preprocessing.rgx.txt"),
-      new ReplacerChain("IRBICON Name Parse 2 letters to n-p.rgx.txt")
-    ));
+    private long getCharMask(String string)
+    {
+      long mask = 0;
+      if(charIndexTable.length == 0)
+        return mask;
+      for(int i = 0; i < string.length(); ++i) {
+        char ch = string.charAt(i);
+        if(ch < charIndexTable.length && charIndexTable[ch] >= 0)
+          mask |= 1L << charIndexTable[ch];
+      }
+      return mask;
+    }
+
+    public List<Replacer> getReplacerList()
+    {
+      return Collections.unmodifiableList(replacerList);
+    }
+
+    // Skip and apply counts of each rule, numbered from 1 in order of the
+    // resource file
+    public void putRuleCounts(Map<String, Long> map)
+    {
+      for(int i = 0; i < replacerList.size(); ++i) {
+        String key = resourceName + "#" + (i + 1);
+        map.put(key + ".skips", replacerList.get(i).getSkipCount());
+        map.put(key + ".applies", replacerList.get(i).getApplyCount());
+      }
+    }
+
+    @Override
+    public String apply(String string)
+    {
+      long charMask = getCharMask(string);
+      for(int i = 0; i < replacerList.size(); ++i) {
+        Replacer replacer = replacerList.get(i);
+        boolean isApplicable = true;
+        for(long mask: requiredMaskTable[i]) {
+          if((charMask & mask) == 0) {
+            isApplicable = false;
+            break;
+          }
+        }
+        if(!isApplicable) {
+          replacer.skipCount.increment();
+          continue;
+        }
+        replacer.applyCount.increment();
+        String result = replacer.apply(string);
+        if(result != string) {
+          charMask |= replaceMaskList[i];
+          string = result;
+        }
+      }
+      return string;
+    }
+  }
+
+  private static final class Transliterator
+    implements StringOperator
+  {
+    // Literal alternative of a rule's pattern, with pattern's anchors
+    private static final class Alternative
+    {
+      public final int ruleIndex;
+      public final String findStr;
+      public final boolean isAtStart;
+      public final boolean isAtEnd;
+      public final String replaceStr;
+
+      public Alternative(int ruleIndex, String findStr, boolean isAtStart, boolean isAtEnd,
+                         String replaceStr)
+      {
+        this.ruleIndex = ruleIndex;
+        this.findStr = findStr;
+        this.isAtStart = isAtStart;
+        this.isAtEnd = isAtEnd;
+        this.replaceStr = replaceStr;
+      }
+    }
+
+    private static final int ORIGINAL = 0;
+    private static final int REPLACED = 1;
+    private static final int DELETED = 2;
+
+    private ReplacerChain replacerChain;
+    private boolean isCompiled;
+    // Index of a char in the alphabet of all chars met in patterns, or -1
+    private int[] charIndexTable;
+    private int alphabetSize;
+    // Trie over alternatives: node * alphabetSize + char index -> next node or 0
+    private int[] transitionTable;
+    // Alternatives ending at the trie node, ordered by rule then by preference
+    private int[][] terminalTable;
+    private Alternative[] alternativeList;
+
+    public Transliterator(KnowledgeBase knowledgeBase, String resourceName)
+    {
+      replacerChain = new ReplacerChain(knowledgeBase, resourceName);
+
+      isCompiled = compile(replacerChain.getReplacerList());
+      if(!isCompiled)
+        logger.info(resourceName + ": left to regex");
+    }
+
+    private boolean compile(List<Replacer> replacerList)
+    {
+      List<Alternative> altList = new ArrayList<>();
+      for(int i = 0; i < replacerList.size(); ++i) {
+        String findStr = replacerList.get(i).getFindStr();
+        boolean isAtStart = findStr.startsWith("^");
+        boolean isAtEnd = findStr.endsWith("$") && !findStr.endsWith("\\$");
+        List<String> findStrList = 
+          parseAlternatives(findStr.substring(isAtStart ? 1 : 0,
+                                              findStr.length() - (isAtEnd ? 1 : 0)));
+        if(findStrList == null)
+          return false;
+        for(String altFindStr: findStrList)
+          altList.add(new Alternative(i, altFindStr, isAtStart, isAtEnd,
+                                      replacerList.get(i).getReplaceStr()));
+      }
+
+      int tableSize = 0;
+      for(Alternative alt: altList)
+        for(char ch: alt.findStr.toCharArray())
+          tableSize = Math.max(tableSize, ch + 1);
+      charIndexTable = new int[tableSize];
+      Arrays.fill(charIndexTable, -1);
+      alphabetSize = 0;
+      for(Alternative alt: altList)
+        for(char ch: alt.findStr.toCharArray())
+          if(charIndexTable[ch] < 0)
+            charIndexTable[ch] = alphabetSize++;
+
+      // Replacement must never be matched by any later rule, and deletion
+      // may only shorten the string from its ends, so that no new
+      // neighbourhood of chars appears in the middle
+      for(Alternative alt: altList) {
+        for(char ch: alt.replaceStr.toCharArray())
+          if(ch == '$' || ch == '\\' || (ch < tableSize && charIndexTable[ch] >= 0))
+            return false;
+        if(alt.replaceStr.isEmpty() && !alt.isAtStart && !alt.isAtEnd)
+          return false;
+      }
+
+      List<int[]> transitionList = new ArrayList<>();
+      List<List<Integer>> terminalList = new ArrayList<>();
+      transitionList.add(new int[alphabetSize]);
+      terminalList.add(new ArrayList<Integer>());
+      for(int i = 0; i < altList.size(); ++i) {
+        int node = 0;
+        for(char ch: altList.get(i).findStr.toCharArray()) {
+          int[] transitions = transitionList.get(node);
+          if(transitions[charIndexTable[ch]] == 0) {
+            transitions[charIndexTable[ch]] = transitionList.size();
+            transitionList.add(new int[alphabetSize]);
+            terminalList.add(new ArrayList<Integer>());
+          }
+          node = transitions[charIndexTable[ch]];
+        }
+        terminalList.get(node).add(i);
+      }
+
+      transitionTable = new int[transitionList.size() * alphabetSize];
+      terminalTable = new int[transitionList.size()][];
+      for(int node = 0; node < transitionList.size(); ++node) {
+        System.arraycopy(transitionList.get(node), 0,
+                         transitionTable, node * alphabetSize, alphabetSize);
+        terminalTable[node] = 
+          terminalList.get(node).stream().mapToInt(Integer::intValue).toArray();
+      }
+      alternativeList = altList.toArray(new Alternative[0]);
+      return true;
+    }
+
+    // Expands pattern made of literals and groups of literal alternatives
+    // into the list of literal strings in order the regex engine tries them
+    private static List<String> parseAlternatives(String findStr)
+    {
+      List<String> resultList = new ArrayList<>();
+      resultList.add("");
+      int pos = 0;
+      while(pos < findStr.length()) {
+        List<String> partList = new ArrayList<>();
+        char ch = findStr.charAt(pos++);
+        if(ch == '(') {
+          int endPos = findStr.indexOf(')', pos);
+          if(endPos < 0)
+            return null;
+          for(String part: findStr.substring(pos, endPos).split("\\|", -1)) {
+            List<String> literalList = parseAlternatives(part);
+            if(literalList == null || literalList.size() != 1 || part.contains("("))
+              return null;
+            partList.add(literalList.get(0));
+          }
+          pos = endPos + 1;
+        }
+        else if(ch == '\\') {
+          if(pos >= findStr.length() || Character.isLetterOrDigit(findStr.charAt(pos)))
+            return null;
+          partList.add(String.valueOf(findStr.charAt(pos++)));
+        }
+        else if("^$.|?*+[]{})".indexOf(ch) >= 0 || Character.isSurrogate(ch))
+          return null;
+        else
+          partList.add(String.valueOf(ch));
+
+        List<String> newResultList = new ArrayList<>();
+        for(String result: resultList)
+          for(String part: partList)
+            newResultList.add(result + part);
+        resultList = newResultList;
+      }
+      for(String result: resultList)
+        if(result.isEmpty())
+          return null;
+      return resultList;
+    }
+
+    @Override
+    public String apply(String string)
+    {
+      if(!isCompiled)
+        return replacerChain.apply(string);
+
+      // Most of input is pure Cyrillic and can't be matched by any rule
+      boolean hasLineTerminator = false;
+      boolean hasMatchableChar = false;
+      for(int i = 0; i < string.length(); ++i) {
+        char ch = string.charAt(i);
+        if(ch < charIndexTable.length && charIndexTable[ch] >= 0)
+          hasMatchableChar = true;
+        else if("\n\r\u0085\u2028\u2029".indexOf(ch) >= 0)
+          hasLineTerminator = true;
+      }
+      if(!hasMatchableChar)
+        return string;
+      // Regex `$` also matches before the final line terminator
+      if(hasLineTerminator)
+        return replacerChain.apply(string);
+
+      return transduce(string);
+    }
+
+    private String transduce(String string)
+    {
+      int length = string.length();
+      if(length >= (1 << 21))
+        return replacerChain.apply(string);
+
+      // Collect every alternative matching anywhere in the original string,
+      // keyed to be processed rule by rule, left to right, by preference
+      Workspace workspace = Workspace.get();
+      long[] matchList = workspace.getMatchList(16);
+      int matchCount = 0;
+      for(int start = 0; start < length; ++start) {
+        int node = 0;
+        for(int pos = start; pos < length; ++pos) {
+          char ch = string.charAt(pos);
+          if(ch >= charIndexTable.length || charIndexTable[ch] < 0)
+            break;
+          node = transitionTable[node * alphabetSize + charIndexTable[ch]];
+          if(node == 0)
+            break;
+          for(int altIndex: terminalTable[node]) {
+            if(matchCount == matchList.length)
+              matchList = Arrays.copyOf(matchList, matchCount * 2);
+            matchList[matchCount++] = 
+              ((long)alternativeList[altIndex].ruleIndex << 42) | ((long)start << 21) | altIndex;
+          }
+        }
+      }
+      workspace.putMatchList(matchList);
+      Arrays.sort(matchList, 0, matchCount);
+
+      // Emulate rules applied one after another: each rule replaces
+      // non-overlapping matches over chars not yet replaced by former rules,
+      // and its anchors see the string as former rules have shortened it
+      int[] stateList = workspace.getStateList(length);
+      int[] ruleList = workspace.getRuleList(length);
+      String[] replaceStrList = workspace.getReplaceStrList(length);
+      int endPos = 0;
+      int ruleIndex = -1;
+      for(int i = 0; i < matchCount; ++i) {
+        Alternative alt = alternativeList[(int)(matchList[i] & 0x1fffff)];
+        int start = (int)((matchList[i] >>> 21) & 0x1fffff);
+        int end = start + alt.findStr.length();
+        if(alt.ruleIndex != ruleIndex) {
+          ruleIndex = alt.ruleIndex;
+          endPos = 0;
+        }
+        if(start < endPos)
+          continue;
+        if(!isOriginal(stateList, start, end) ||
+            (alt.isAtStart && !isDeleted(stateList, ruleList, ruleIndex, 0, start)) ||
+            (alt.isAtEnd && !isDeleted(stateList, ruleList, ruleIndex, end, length)))
+          continue;
+        int state = (alt.replaceStr.isEmpty() ? DELETED : REPLACED);
+        for(int pos = start; pos < end; ++pos) {
+          stateList[pos] = state;
+          ruleList[pos] = ruleIndex;
+        }
+        replaceStrList[start] = alt.replaceStr;
+        endPos = end;
+      }
+
+      StringBuilder result = workspace.getTranslitBuilder();
+      for(int pos = 0; pos < length; ) {
+        if(stateList[pos] == ORIGINAL) {
+          result.append(string.charAt(pos++));
+          continue;
+        }
+        result.append(replaceStrList[pos]);
+        int state = stateList[pos];
+        int rule = ruleList[pos];
+        for(++pos; pos < length && replaceStrList[pos] == null &&
+            stateList[pos] == state && ruleList[pos] == rule; ++pos);
+      }
+      return result.toString();
+    }
 
-  private static final StringOperator preprocOrg =
-    new ReplacerChain("IRBICON Organization Parse Pre-processing.rgx.txt");
+    private static boolean isOriginal(int[] stateList, int start, int end)
+    {
+      for(int pos = start; pos < end; ++pos)
+        if(stateList[pos] != ORIGINAL)
+          return false;
+      return true;
+    }
 
-  private static final StringOperator translit =
-    new ReplacerChain("IRBICON Latin to Cyrillic Transliteration.rgx.txt");
+    private static boolean isDeleted(int[] stateList, int[] ruleList, int ruleIndex,
+                                     int start, int end)
+    {
+      for(int pos = start; pos < end; ++pos)
+        if(stateList[pos] != DELETED || ruleList[pos] == ruleIndex)
+          return false;
+      return true;
+    }
+  }
 
   //
 
   private static final class Phonetics
     implements StringOperator
   {
-    private static final class PhoneticReplacer
+    static final class PhoneticReplacer
     {
       public final Pattern pattern;
       public final String replaceStr;
+      // Pattern compiled into plain char sets, one per matched char, or null
+      // if the pattern is beyond "[^]atom...atom[$]" and needs regex engine
+      public final String[] atomList;
+      public final boolean isAtStart;
+      public final boolean isAtEnd;
 
       public PhoneticReplacer(String findStr, String replaceStr)
       {
         this.pattern = Pattern.compile(findStr);
         this.replaceStr = replaceStr;
+
+        boolean isAtStart = findStr.startsWith("^");
+        boolean isAtEnd = findStr.endsWith("$") && !findStr.endsWith("\\$");
+        this.atomList = parseAtomList(findStr.substring(isAtStart ? 1 : 0,
+                                                        findStr.length() - (isAtEnd ? 1 : 0)));
+        this.isAtStart = isAtStart;
+        this.isAtEnd = isAtEnd;
+      }
+
+      private static String[] parseAtomList(String findStr)
+      {
+        List<String> atomList = new ArrayList<>();
+        int pos = 0;
+        while(pos < findStr.length()) {
+          char ch = findStr.charAt(pos++);
+          if(ch == '[') {
+            int endPos = findStr.indexOf(']', pos);
+            if(endPos < 0)
+              return null;
+            String atom = parseCharClass(findStr.substring(pos, endPos));
+            if(atom == null)
+              return null;
+            atomList.add(atom);
+            pos = endPos + 1;
+          }
+          else if(ch == '\\') {
+            if(pos >= findStr.length() || Character.isLetterOrDigit(findStr.charAt(pos)))
+              return null;
+            atomList.add(String.valueOf(findStr.charAt(pos++)));
+          }
+          else if("^$.|?*+(){}]".indexOf(ch) >= 0 || Character.isSurrogate(ch))
+            return null;
+          else
+            atomList.add(String.valueOf(ch));
+        }
+        // Empty match would never move the scan forward
+        return (atomList.isEmpty() ? null : atomList.toArray(new String[0]));
+      }
+
+      private static String parseCharClass(String members)
+      {
+        if(members.isEmpty() || members.startsWith("^"))
+          return null;
+        StringBuilder atom = new StringBuilder();
+        for(int pos = 0; pos < members.length(); ++pos) {
+          char ch = members.charAt(pos);
+          if("[\\&".indexOf(ch) >= 0 || Character.isSurrogate(ch))
+            return null;
+          if(pos + 2 < members.length() && members.charAt(pos + 1) == '-') {
+            char last = members.charAt(pos + 2);
+            if(last < ch || "[\\&".indexOf(last) >= 0 || Character.isSurrogate(last))
+              return null;
+            for(int c = ch; c <= last; ++c)
+              atom.append((char)c);
+            pos += 2;
+          }
+          else
+            atom.append(ch);
+        }
+        return atom.toString();
+      }
+
+      public boolean isCompiled()
+      {
+        return atomList != null;
+      }
+
+      public boolean matchesAt(String string, int pos)
+      {
+        int endPos = pos + atomList.length;
+        if(endPos > string.length())
+          return false;
+        if((isAtStart && pos > 0) || (isAtEnd && endPos < string.length()))
+          return false;
+        for(int i = 0; i < atomList.length; ++i)
+          if(atomList[i].indexOf(string.charAt(pos + i)) < 0)
+            return false;
+        return true;
       }
     }
     
     private List<PhoneticReplacer> replacerList;
+    // Compiled replacers by the first char they may match, in rule order
+    private int[][] dispatchTable;
+    // Replacers left to regex engine
+    private int[] regexIndexList;
+    private boolean hasEndAnchor;
 
-    public Phonetics(String resourceName)
+    public Phonetics(KnowledgeBase knowledgeBase, String resourceName)
     {
       replacerList = new ArrayList<PhoneticReplacer>();
 
-      boolean isLoaded = ResourceLoader.load(resourceName, line ->
+      boolean isLoaded = knowledgeBase.load(resourceName, parts ->
       {
-        String[] parts = line.split("\t");
         if(parts.length == 2)
           replacerList.add(new PhoneticReplacer(parts[0], parts[1]));  
         else if(parts.length == 1)
@@ -192,30 +1446,187 @@ public class MatchCoder
         return true;
       });
 
-      if(!isLoaded) {
+      if(!isLoaded)
         replacerList.clear();
+
+      compile();
+
+      if(!isLoaded)
         return;
+
+      logger.info(resourceName + ": loaded " + replacerList.size() + " entries, " +
+                  regexIndexList.length + " left to regex");
+    }
+
+    private void compile()
+    {
+      int tableSize = 0;
+      for(PhoneticReplacer replacer: replacerList)
+        if(replacer.isCompiled())
+          for(char ch: replacer.atomList[0].toCharArray())
+            tableSize = Math.max(tableSize, ch + 1);
+
+      List<List<Integer>> dispatchList = new ArrayList<>();
+      for(int ch = 0; ch < tableSize; ++ch)
+        dispatchList.add(new ArrayList<Integer>());
+
+      List<Integer> regexList = new ArrayList<>();
+      hasEndAnchor = false;
+      for(int i = 0; i < replacerList.size(); ++i) {
+        PhoneticReplacer replacer = replacerList.get(i);
+        if(!replacer.isCompiled()) {
+          regexList.add(i);
+          continue;
+        }
+        for(char ch: replacer.atomList[0].toCharArray())
+          if(!dispatchList.get(ch).contains(i))
+            dispatchList.get(ch).add(i);
+        hasEndAnchor |= replacer.isAtEnd;
+      }
+
+      dispatchTable = new int[tableSize][];
+      for(int ch = 0; ch < tableSize; ++ch)
+        if(!dispatchList.get(ch).isEmpty())
+          dispatchTable[ch] = dispatchList.get(ch).stream().mapToInt(Integer::intValue).toArray();
+      regexIndexList = regexList.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // Matchers of replacers left to regex, with their next match
+    static final class RegexState
+    {
+      private final Matcher[] matcherList;
+      private final int[] startList;
+      private final int[] endList;
+
+      public RegexState(Matcher[] matcherList)
+      {
+        this.matcherList = matcherList;
+        startList = new int[matcherList.length];
+        endList = new int[matcherList.length];
       }
+    }
+
+    public RegexState newRegexState()
+    {
+      Matcher[] matcherList = new Matcher[regexIndexList.length];
+      for(int i = 0; i < regexIndexList.length; ++i)
+        matcherList[i] = replacerList.get(regexIndexList[i]).pattern.matcher("");
+      return new RegexState(matcherList);
+    }
 
-      logger.info(resourceName + ": loaded " + replacerList.size() + " entries");
+    private static boolean endsWithLineTerminator(String string)
+    {
+      return !string.isEmpty() &&
+        "\n\r\u0085\u2028\u2029".indexOf(string.charAt(string.length() - 1)) >= 0;
     }
 
     @Override
     public String apply(String string)
     {
-      StringBuffer result = new StringBuffer();
+      // Regex `$` also matches before the final line terminator
+      if(hasEndAnchor && endsWithLineTerminator(string))
+        return applyRegex(string);
+
+      Matcher[] matcherList = null;
+      int[] regexStartList = null;
+      int[] regexEndList = null;
+      if(regexIndexList.length > 0) {
+        RegexState regexState = Workspace.get().getRegexState(this);
+        matcherList = regexState.matcherList;
+        regexStartList = regexState.startList;
+        regexEndList = regexState.endList;
+        for(int i = 0; i < regexIndexList.length; ++i) {
+          matcherList[i].reset(string);
+          regexStartList[i] = -1;
+        }
+      }
+
+      StringBuilder result = null;
+      int length = string.length();
+      int currentPos = 0;
+      while(currentPos < length) {
+        int startPos = length;
+        int endPos = length;
+        int index = -1;
+
+        // Leftmost position where any of compiled replacers matches,
+        // the first one in rule order wins
+        scan:
+        for(int pos = currentPos; pos < length; ++pos) {
+          char ch = string.charAt(pos);
+          if(ch >= dispatchTable.length || dispatchTable[ch] == null)
+            continue;
+          for(int i: dispatchTable[ch]) {
+            PhoneticReplacer replacer = replacerList.get(i);
+            if(replacer.matchesAt(string, pos)) {
+              startPos = pos;
+              endPos = pos + replacer.atomList.length;
+              index = i;
+              break scan;
+            }
+          }
+        }
+
+        // Replacers left to regex remember their next match until passed by
+        for(int i = 0; matcherList != null && i < matcherList.length; ++i) {
+          if(regexStartList[i] == Integer.MAX_VALUE)
+            continue;
+          if(regexStartList[i] < currentPos) {
+            if(matcherList[i].find(currentPos)) {
+              regexStartList[i] = matcherList[i].start();
+              regexEndList[i] = matcherList[i].end();
+            }
+            else
+              regexStartList[i] = Integer.MAX_VALUE;
+          }
+          if(regexStartList[i] < startPos ||
+              (regexStartList[i] == startPos && regexIndexList[i] < index))
+          {
+            startPos = regexStartList[i];
+            endPos = regexEndList[i];
+            index = regexIndexList[i];
+          }
+        }
+
+        if(index < 0)
+          break;
+
+        if(result == null)
+          result = Workspace.get().getPhoneticsBuilder();
+        result.append(string, currentPos, startPos);
+        result.append(replacerList.get(index).replaceStr);
+
+        currentPos = endPos;
+      } 
+
+      if(result == null)
+        return string;
+      result.append(string, currentPos, length);
+      return result.toString();
+    }
+
+    // Replacers which found no match are dropped from the list in place
+    private String applyRegex(String string)
+    {
+      Workspace workspace = Workspace.get();
+      StringBuilder result = workspace.getPhoneticsBuilder();
 
       int currentPos = 0;
-      List<PhoneticReplacer> useList = replacerList;
-      Matcher matcher = Pattern.compile("").matcher(string);
+      ArrayList<PhoneticReplacer> useList = workspace.getPhoneticReplacerList();
+      useList.addAll(replacerList);
+      Matcher matcher = null;
       while(currentPos < string.length()) {
         int startPos = string.length();
         int endPos = startPos;
         String replaceStr = "";
-        List<PhoneticReplacer> newList = new ArrayList<>();
-        for(PhoneticReplacer replacer: useList) {
+        int useCount = 0;
+        for(int i = 0; i < useList.size(); ++i) {
+          PhoneticReplacer replacer = useList.get(i);
           if(startPos > currentPos) {
-            matcher.usePattern(replacer.pattern);
+            if(matcher == null)
+              matcher = replacer.pattern.matcher(string);
+            else
+              matcher.usePattern(replacer.pattern);
             if(!matcher.find(currentPos))
               continue;
             if(matcher.start() < startPos) {
@@ -224,125 +1635,355 @@ public class MatchCoder
               replaceStr = replacer.replaceStr;
             }
           }
-          newList.add(replacer);
+          useList.set(useCount++, replacer);
         }
-        useList = newList;
+        while(useList.size() > useCount)
+          useList.remove(useList.size() - 1);
 
-        result.append(string.substring(currentPos, startPos));
+        result.append(string, currentPos, startPos);
         result.append(replaceStr);
 
         currentPos = endPos;
       } 
       
+      useList.clear();
       return result.toString();
     }
   }
 
-  private static final StringOperator prePhonetics =
-    new Phonetics("IRBICON Double Letter Removal.phx.txt");
+  //
+
+  // Rule of the shape "(?ui)[<class>](<suffix>|<suffix>|...)$", which is
+  // matched by the trie of reversed suffixes walked from the string end,
+  // in time of the suffix length. Class membership of each char is taken
+  // from the class regex itself on first sight, so the result is exactly
+  // that of the rule regex
 
-  private static final StringOperator postPhonetics =
-    new StringOperatorChain(Arrays.asList(
-      // Next two are disabled for sensitivity of 85:
-      //new Phonetics("IRBICON Fricative Consonant Reduction.phx.txt"),
-      //new Phonetics("IRBICON Fricative Consonant Advanced Reduction.phx.txt"),
-      new Phonetics("IRBICON Vowel Transformation and Removal.phx.txt")
-    ));
+  private static final class SuffixRule
+  {
+    private static final Pattern rulePattern = Pattern.compile(
+      "(\\(\\?(?:ui|iu)\\))?(\\[[^\\[\\]\\\\&]*\\])" +
+      "\\(([^\\\\()\\[\\]{}|.*+?^$]+(?:\\|[^\\\\()\\[\\]{}|.*+?^$]+)*)\\)\\$");
+
+    private static final byte IN_CLASS = 1;
+    private static final byte OUT_OF_CLASS = 2;
+
+    private boolean isCaseInsensitive;
+    private Pattern classPattern;
+    private byte[] classStateList;
+    // Children of the node are at childStartList[node] up to
+    // childStartList[node + 1]
+    private int[] childStartList;
+    private char[] childCharList;
+    private int[] childNodeList;
+    private boolean[] isTerminalList;
+    // Suffixes of single char are kept apart, since regex compares char
+    // having no case variants as is rather than folded
+    private char[] singleCharList;
+    private boolean[] isSingleFoldedList;
+
+    // Null if the rule is not of the shape
+    public static SuffixRule compile(String rule)
+    {
+      Matcher matcher = rulePattern.matcher(rule);
+      if(!matcher.matches())
+        return null;
+      for(int i = 0; i < matcher.group(3).length(); ++i) {
+        if(Character.isSurrogate(matcher.group(3).charAt(i)))
+          return null;
+      }
+      return new SuffixRule(matcher.group(1) != null, matcher.group(2),
+                            Arrays.asList(matcher.group(3).split("\\|")));
+    }
 
-  private static final StringOperator namePhonetics =
-    new StringOperatorChain(Arrays.asList(
-      prePhonetics, 
-      postPhonetics
-    ));
-        
-  private static final StringOperator patronymPhonetics =
-    new StringOperatorChain(Arrays.asList(
-      prePhonetics, 
-      new Phonetics("IRBICON Patronymic Suffix Removal.phx.txt"),
-      postPhonetics
-    ));
+    private SuffixRule(boolean isCaseInsensitive, String charClass, List<String> suffixList)
+    {
+      this.isCaseInsensitive = isCaseInsensitive;
+      classPattern = Pattern.compile((isCaseInsensitive ? "(?ui)" : "") + charClass);
+      classStateList = new byte[Character.MAX_VALUE + 1];
+
+      List<TreeMap<Character, Integer>> childMapList = new ArrayList<>();
+      List<Boolean> isTerminalNodeList = new ArrayList<>();
+      childMapList.add(new TreeMap<Character, Integer>());
+      isTerminalNodeList.add(false);
+      StringBuilder singleChars = new StringBuilder();
+      for(String suffix: suffixList) {
+        if(suffix.length() == 1) {
+          singleChars.append(suffix);
+          continue;
+        }
+        int node = 0;
+        for(int i = suffix.length() - 1; i >= 0; --i) {
+          char ch = fold(suffix.charAt(i));
+          Integer child = childMapList.get(node).get(ch);
+          if(child == null) {
+            child = childMapList.size();
+            childMapList.get(node).put(ch, child);
+            childMapList.add(new TreeMap<Character, Integer>());
+            isTerminalNodeList.add(false);
+          }
+          node = child;
+        }
+        isTerminalNodeList.set(node, true);
+      }
 
-  private static final StringOperator finalPhonetics =
-    new Phonetics("MatchCode Final Replace.phx.txt");
+      int nodeCount = childMapList.size();
+      childStartList = new int[nodeCount + 1];
+      childCharList = new char[nodeCount - 1];
+      childNodeList = new int[nodeCount - 1];
+      isTerminalList = new boolean[nodeCount];
+      int k = 0;
+      for(int node = 0; node < nodeCount; ++node) {
+        childStartList[node] = k;
+        for(Map.Entry<Character, Integer> entry: childMapList.get(node).entrySet()) {
+          childCharList[k] = entry.getKey();
+          childNodeList[k] = entry.getValue();
+          ++k;
+        }
+        isTerminalList[node] = isTerminalNodeList.get(node);
+      }
+      childStartList[nodeCount] = k;
+
+      singleCharList = new char[singleChars.length()];
+      isSingleFoldedList = new boolean[singleChars.length()];
+      for(int i = 0; i < singleChars.length(); ++i) {
+        char ch = singleChars.charAt(i);
+        char upper = Character.toUpperCase(ch);
+        isSingleFoldedList[i] = (isCaseInsensitive && upper != Character.toLowerCase(upper));
+        singleCharList[i] = (isSingleFoldedList[i] ? Character.toLowerCase(upper) : ch);
+      }
+    }
 
-  //
+    // Case insensitive regex compares chars folded this way
+    private char fold(char ch)
+    {
+      return (isCaseInsensitive ? Character.toLowerCase(Character.toUpperCase(ch)) : ch);
+    }
+
+    private boolean isSingleSuffix(char ch)
+    {
+      for(int i = 0; i < singleCharList.length; ++i) {
+        if(ch == singleCharList[i] || (isSingleFoldedList[i] && fold(ch) == singleCharList[i]))
+          return true;
+      }
+      return false;
+    }
+
+    private int findChild(int node, char ch)
+    {
+      for(int i = childStartList[node]; i < childStartList[node + 1]; ++i) {
+        if(childCharList[i] == ch)
+          return childNodeList[i];
+      }
+      return -1;
+    }
+
+    // Racing threads may evaluate the same char twice, to the same result
+    private boolean isInClass(char ch)
+    {
+      byte state = classStateList[ch];
+      if(state == 0) {
+        state = (classPattern.matcher(String.valueOf(ch)).matches() ? IN_CLASS : OUT_OF_CLASS);
+        classStateList[ch] = state;
+      }
+      return state == IN_CLASS;
+    }
+
+    private static boolean isLineBreak(char ch)
+    {
+      return ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029';
+    }
+
+    // 1 if found, 0 if not, -1 if the string is to be left to the regex:
+    // "$" matches before the final line break as well, and surrogate
+    // pairs are matched as code points
+    public int match(String string)
+    {
+      int length = string.length();
+      if(length > 0 && isLineBreak(string.charAt(length - 1)))
+        return -1;
+
+      int node = 0;
+      for(int i = length - 1; i > 0; --i) {
+        char ch = string.charAt(i);
+        if(Character.isSurrogate(ch))
+          return -1;
+        if(i == length - 1 && singleCharList.length > 0 && isSingleSuffix(ch)) {
+          char classCh = string.charAt(i - 1);
+          if(Character.isSurrogate(classCh))
+            return -1;
+          if(isInClass(classCh))
+            return 1;
+        }
+        node = findChild(node, fold(ch));
+        if(node < 0)
+          return 0;
+        if(isTerminalList[node]) {
+          char classCh = string.charAt(i - 1);
+          if(Character.isSurrogate(classCh))
+            return -1;
+          if(isInClass(classCh))
+            return 1;
+        }
+      }
+      return 0;
+    }
+  }
+
+  // Finds any of the regex rules in the string. Suffix rules are matched
+  // by tries, others by regex
 
   private static final class Finder
   {
     private List<Pattern> patternList;
+    private List<SuffixRule> suffixRuleList;
+    private ThreadLocal<Matcher[]> threadMatcherList;
 
-    public Finder(String resourceName)
+    public Finder(KnowledgeBase knowledgeBase, String resourceName)
     {
       patternList = new ArrayList<Pattern>();
+      suffixRuleList = new ArrayList<SuffixRule>();
 
-      boolean isLoaded = ResourceLoader.load(resourceName, line ->
+      boolean isLoaded = knowledgeBase.load(resourceName, parts ->
       {
-        String[] parts = line.split("\t");
-        if(parts.length == 1)
+        if(parts.length == 1) {
           patternList.add(Pattern.compile(parts[0]));
+          suffixRuleList.add(SuffixRule.compile(parts[0]));
+        }
         return true;
       });
 
       if(!isLoaded) {
         patternList.clear();
-        return;
+        suffixRuleList.clear();
       }
 
-      logger.info(resourceName + ": loaded " + patternList.size() + " entries");
+      threadMatcherList = ThreadLocal.withInitial(() ->
+      {
+        Matcher[] matcherList = new Matcher[patternList.size()];
+        for(int i = 0; i < matcherList.length; ++i)
+          matcherList[i] = patternList.get(i).matcher("");
+        return matcherList;
+      });
+
+      if(!isLoaded)
+        return;
+
+      int suffixRuleCount = 0;
+      for(SuffixRule rule: suffixRuleList) {
+        if(rule != null)
+          ++suffixRuleCount;
+      }
+      logger.info(resourceName + ": loaded " + patternList.size() + " entries, " +
+                  suffixRuleCount + " of them as suffix tries");
     }
 
     public boolean find(String string)
     {
-      for(Pattern pattern: patternList)
-        if(pattern.matcher(string).find())
+      Matcher[] matcherList = null;
+      for(int i = 0; i < suffixRuleList.size(); ++i) {
+        SuffixRule rule = suffixRuleList.get(i);
+        int result = (rule != null ? rule.match(string) : -1);
+        if(result < 0) {
+          if(matcherList == null)
+            matcherList = threadMatcherList.get();
+          result = (matcherList[i].reset(string).find() ? 1 : 0);
+        }
+        if(result > 0)
           return true;
+      }
       return false;
     }
   }
 
-  private static final Finder familyFinder =
-    new Finder("IRBICON Family Name Categorization.rgx.txt");
-
-  private static final Finder patronymFinder =
-    new Finder("IRBICON Patronymic Name Categorization.rgx.txt");
-
-  private static final Finder orgAdjFinder =
-    new Finder("IRBICON Organization Adjective Word Categorization.rgx.txt");
-
-  //
+  // Chops into tokens by delimiter chars, of which '-' is a token itself.
+  // Line breaks drop the token they end, as the former regex-based chopper
+  // did. Upper case forms of tokens are made in the same pass
 
   private static final class Chopper
   {
-    private Pattern pattern;
+    private static final byte LETTER = 0;
+    private static final byte DELIMITER = 1;
+    private static final byte DASH = 2;
+    private static final byte LINE_BREAK = 3;
+
+    private static final byte[] kindList = new byte[0x2030];
+
+    static {
+      for(char ch: "\t !\"#$%&()*+,./:;<=>?@[\\]^_`{|}~\u007f\u00a0".toCharArray())
+        kindList[ch] = DELIMITER;
+      kindList['-'] = DASH;
+      for(char ch: "\n\r\u0085\u2028\u2029".toCharArray())
+        kindList[ch] = LINE_BREAK;
+    }
+
+    public List<String> apply(String string)
+    {
+      return apply(string, Integer.MAX_VALUE, new ArrayList<String>());
+    }
 
-    public Chopper()
+    // Fills the list, stops as soon as there are more than maxCount tokens
+    public List<String> apply(String string, int maxCount, List<String> list)
     {
-      pattern = Pattern.compile(
-        "(.*?)(" +
-          "\\u0009|\\u0020|\\u0021|\\u0022|\\u0023|" +
-          "\\u0024|\\u0025|\\u0026|\\u0028|\\u0029|" +
-          "\\u002a|\\u002b|\\u002c|\\u002d|\\u002e|" +
-          "\\u002f|\\u003a|\\u003b|\\u003c|\\u003d|" +
-          "\\u003e|\\u003f|\\u0040|\\u005b|\\u005c|" +
-          "\\u005d|\\u005e|\\u005f|\\u0060|\\u007b|" +
-          "\\u007c|\\u007d|\\u007e|\\u007f|\\u00a0" +
-        ")");
+      return apply(string, maxCount, list, null, null);
     }
 
-    public List<String> apply(String string)
+    // Fills the token lists of the workspace
+    public List<String> apply(String string, int maxCount, Workspace workspace)
     {
-      ArrayList<String> list = new ArrayList<>();
-      Matcher matcher = pattern.matcher(string + " ");
-      while(matcher.find()) {
-        String token = matcher.group(1);
-        String delim = matcher.group(2);
-        if(!token.isEmpty())
+      return apply(string, maxCount, workspace.tokenList, workspace.upperTokenList,
+                   workspace.getUpperBuffer(string.length()));
+    }
+
+    private List<String> apply(String string, int maxCount, List<String> list, 
+                               List<String> upperList, char[] upperBuffer)
+    {
+      list.clear();
+      if(upperList != null)
+        upperList.clear();
+      // Other languages have no special upper casing of ASCII and Cyrillic
+      String language = Locale.getDefault().getLanguage();
+      boolean isLocaleSimple = !language.equals("tr") && !language.equals("az");
+
+      int start = 0;
+      boolean isSimple = isLocaleSimple;
+      for(int i = 0; i <= string.length() && list.size() <= maxCount; ++i) {
+        char ch = (i < string.length() ? string.charAt(i) : ' ');
+        byte kind = (ch < kindList.length ? kindList[ch] : LETTER);
+        if(kind == LETTER) {
+          if(upperList != null) {
+            upperBuffer[i] = Character.toUpperCase(ch);
+            isSimple &= (ch < 0x80 || (ch >= 0x400 && ch < 0x500));
+          }
+          continue;
+        }
+
+        if(kind != LINE_BREAK && i > start) {
+          String token = string.substring(start, i);
           list.add(token);
-        if(delim.equals("-"))
-          list.add(delim);
+          if(upperList != null)
+            upperList.add(isSimple ? toUpperCase(token, upperBuffer, start) : token.toUpperCase());
+        }
+        if(kind == DASH) {
+          list.add("-");
+          if(upperList != null)
+            upperList.add("-");
+        }
+        start = i + 1;
+        isSimple = isLocaleSimple;
       }
       return list;
     }
+
+    // Token itself if it is upper case already, as String.toUpperCase() does
+    private static String toUpperCase(String token, char[] upperBuffer, int start)
+    {
+      for(int i = 0; i < token.length(); ++i) {
+        if(token.charAt(i) != upperBuffer[start + i])
+          return new String(upperBuffer, start, token.length());
+      }
+      return token;
+    }
   }
 
   private static final Chopper chopper = new Chopper();
@@ -371,18 +2012,25 @@ public class MatchCoder
     }
   }
 
+  private static final TokenCategory familyWordCategory = new TokenCategory(70, "FW");
+  private static final TokenCategory patronymWordCategory = new TokenCategory(70, "PW");
+  private static final TokenCategory numberCategory = new TokenCategory(50, "NUM");
+  private static final TokenCategory anyFamilyWordCategory = new TokenCategory(30, "FW");
+  private static final TokenCategory anyNameWordCategory = new TokenCategory(30, "NW");
+  private static final TokenCategory adjectiveWordCategory = new TokenCategory(50, "AW");
+  private static final TokenCategory commonWordCategory = new TokenCategory(50, "CNW");
+
   private static class TokenVocab
   {
     private static final ArrayList<TokenCategory> defaultEntry = new ArrayList<>();
     private HashMap<String, ArrayList<TokenCategory>> entryMap;
     
-    public TokenVocab(String resourceName)
+    public TokenVocab(KnowledgeBase knowledgeBase, String resourceName)
     {
       entryMap = new HashMap<String, ArrayList<TokenCategory>>();
 
-      boolean isLoaded = ResourceLoader.load(resourceName, line ->
+      boolean isLoaded = knowledgeBase.load(resourceName, parts ->
       {
-        String[] parts = line.split("\t");
         if(parts.length != 3)
           return true;
          
@@ -405,428 +2053,3071 @@ public class MatchCoder
         return true;
       });
 
-      if(!isLoaded) {
-        entryMap.clear();
-        return;
-      }
+      if(!isLoaded) {
+        entryMap.clear();
+        return;
+      }
+
+      logger.info(resourceName + ": loaded " + entryMap.size() + " entries");
+    }
+
+    public List<TokenCategory> find(String token)
+    {
+      return Collections.unmodifiableList(entryMap.getOrDefault(token, defaultEntry));
+    }
+
+    // Adds categories of the token to the list
+    public void find(String token, List<TokenCategory> list)
+    {
+      ArrayList<TokenCategory> entry = entryMap.get(token);
+      if(entry == null)
+        return;
+      for(int i = 0; i < entry.size(); ++i)
+        list.add(entry.get(i));
+    }
+  }
+
+  private static class TokenVocabChain
+  {
+    private List<TokenVocab> vocabList;
+
+    public TokenVocabChain(List<TokenVocab> vocabList)
+    {
+      this.vocabList = vocabList;
+    }
+
+    public List<TokenCategory> find(String token)
+    {
+      List<TokenCategory> list = new ArrayList<>();
+      find(token, list);
+      return list;
+    }
+
+    public void find(String token, List<TokenCategory> list)
+    {
+      for(int i = 0; i < vocabList.size(); ++i)
+        vocabList.get(i).find(token, list);
+    }
+  }
+
+  //
+
+  public static final class Range
+  {
+    private int start;
+    private int length;
+
+    public Range(int start, int length)
+    {
+      this.start = start;
+      this.length = length;
+    }
+
+    public int getStart()
+    {
+      return start;
+    }
+
+    public int getLength()
+    {
+      return length;
+    }
+  }
+
+  public static final class TokenizerTree
+  {
+    private int weight;
+    private int order;
+    private List<Range> rangeList;
+
+    public TokenizerTree(int weight, int order, List<Range> rangeList)
+    {
+      this.weight = weight;
+      this.order = order;
+      this.rangeList = rangeList;
+    }
+
+    public int getWeight()
+    {
+      return weight;
+    }
+
+    public int getOrder()
+    {
+      return order;
+    }
+
+    public List<Range> getRangeList()
+    {
+      return Collections.unmodifiableList(rangeList);
+    }
+  }
+
+  // Forest keys are sequences of category codes. Codes are interned into
+  // small ids at load time, and every key is packed into a long, CODE_BITS
+  // per code with the first code at the top, so that sorted keys sharing
+  // a prefix stay together. Trees are kept in flat int arrays
+  public static final class TokenizerForest
+  {
+    private static final int CODE_BITS = 6;
+    private static final int MAX_CODE_ID = (1 << CODE_BITS) - 1;
+    private static final int MAX_KEY_LENGTH = 64 / CODE_BITS;
+
+    // Depth-first walk over category combinations that exist in the trie,
+    // in the same order as the full cartesian product was enumerated
+    private final class BestPathSearch
+    {
+      private List<List<TokenCategory>> tokenCategoryList;
+      // Code ids of the token categories start at codeIdStartList[token]
+      private int[] codeIdList;
+      private int[] codeIdStartList;
+      // Highest weight the tokens starting from the index may add
+      private int[] boundList;
+      private Workspace workspace;
+      private int solutionCount;
+      public int tree = -1;
+      public int weight;
+      public boolean isAborted;
+
+      public BestPathSearch(List<List<TokenCategory>> tokenCategoryList, int maxSolutionCount)
+      {
+        this.tokenCategoryList = tokenCategoryList;
+        this.solutionCount = maxSolutionCount;
+
+        workspace = Workspace.get();
+        int tokenCount = tokenCategoryList.size();
+        int categoryCount = 0;
+        codeIdStartList = workspace.getCodeIdStartList(tokenCount);
+        for(int i = 0; i < tokenCount; ++i) {
+          codeIdStartList[i] = categoryCount;
+          categoryCount += tokenCategoryList.get(i).size();
+        }
+        codeIdList = workspace.getCodeIdList(categoryCount);
+        boundList = workspace.getBoundList(tokenCount + 1);
+        for(int i = tokenCount - 1; i >= 0; --i) {
+          List<TokenCategory> categoryList = tokenCategoryList.get(i);
+          int maxWeight = 0;
+          for(int j = 0; j < categoryList.size(); ++j) {
+            TokenCategory category = categoryList.get(j);
+            codeIdList[codeIdStartList[i] + j] = getCodeId(category.getCode());
+            maxWeight = Math.max(maxWeight, category.getWeight() * 10);
+          }
+          boundList[i] = boundList[i + 1] + maxWeight;
+        }
+      }
+
+      public void walk(int node, int depth, int solutionWeight)
+      {
+        if(isAborted)
+          return;
+        if(--solutionCount < 0) {
+          isAborted = true;
+          return;
+        }
+
+        if(depth == tokenCategoryList.size()) {
+          int t = nodeTreeList[node];
+          if(t >= 0) {
+            int w = solutionWeight + weightList[t];
+            if(tree < 0 || w > weight ||
+                (w == weight && orderList[t] > orderList[tree]))
+            {
+              tree = t;
+              weight = w;
+            }
+          }
+          return;
+        }
+
+        if(nodeHeightList[node] < tokenCategoryList.size() - depth)
+          return;
+
+        List<TokenCategory> categoryList = tokenCategoryList.get(depth);
+        for(int i = 0; i < categoryList.size(); ++i) {
+          int child = findChild(node, codeIdList[codeIdStartList[depth] + i]);
+          if(child < 0)
+            continue;
+          int w = solutionWeight + categoryList.get(i).getWeight() * 10;
+          // Tree with the same weight still may win by order, so only
+          // the branches which can't reach the best weight are cut
+          if(tree >= 0 && w + boundList[depth + 1] + nodeMaxWeightList[child] < weight)
+            continue;
+          walk(child, depth + 1, w);
+        }
+      }
+    }
+
+    private int rangeCount;
+    private HashMap<String, Integer> codeIdMap;
+    // Sorted packed keys and their trees
+    private long[] keyList;
+    private int[] weightList;
+    private int[] orderList;
+    // Start and length of each range, rangeCount pairs per tree
+    private int[] rangeList;
+    // Trie over the keys: children of a node are at childStartList[node]
+    // up to childStartList[node + 1], ordered by code id
+    private int[] childStartList;
+    private int[] childCodeIdList;
+    private int[] childNodeList;
+    private int[] nodeTreeList;
+    // Longest key continuation and the heaviest tree within the subtrie
+    private int[] nodeHeightList;
+    private int[] nodeMaxWeightList;
+
+    // Takes packed tables from the knowledge base if it keeps them, else
+    // parses the text resource
+    public TokenizerForest(KnowledgeBase knowledgeBase, String resourceName, int rangeCount)
+    {
+      this.rangeCount = rangeCount;
+      codeIdMap = new HashMap<String, Integer>();
+
+      ByteBuffer section = knowledgeBase.getSection(resourceName, KnowledgeBaseArtifact.FOREST_SECTION);
+      if(section != null) {
+        if(unpack(section)) {
+          logger.info(resourceName + ": loaded " + keyList.length + " packed entries");
+          return;
+        }
+        logger.warning(resourceName + ": packed forest doesn't fit, loading text resource");
+        codeIdMap.clear();
+      }
+
+      HashMap<Long, int[]> treeMap = new HashMap<>();
+
+      boolean isLoaded = knowledgeBase.load(resourceName, parts ->
+      {
+        if(parts.length != 4)
+          return true;
+
+        int weight;
+        try {
+          weight = Integer.parseInt(parts[1]);
+        }
+        catch(NumberFormatException e) {
+          return true;
+        }
+        if(weight < 0)
+          return true;
+  
+        int order;
+        try {
+          order = Integer.parseInt(parts[2]);
+        }
+        catch(NumberFormatException e) {
+          return true;
+        }
+        if(order < 0)
+          return true;
+  
+        String[] rangeParts = parts[3].split(",");
+        if(rangeParts.length != rangeCount * 2)
+          return true;
+
+        // weight, order, then ranges
+        int[] tree = new int[2 + rangeCount * 2];
+        tree[0] = weight;
+        tree[1] = order;
+        try {
+          for(int i = 0; i < rangeCount * 2; ++i)
+            tree[2 + i] = Integer.parseInt(rangeParts[i]);
+        }
+        catch(NumberFormatException e) {
+          return true;
+        }
+
+        long key = internKey(parts[0]);
+        if(key < 0) {
+          logger.warning(resourceName + ": key too long or too many codes: " + parts[0]);
+          return true;
+        }
+
+        treeMap.put(key, tree);
+        return true;
+      });
+
+      if(!isLoaded)
+        treeMap.clear();
+
+      pack(treeMap);
+
+      if(!isLoaded)
+        return;
+
+      logger.info(resourceName + ": loaded " + keyList.length + " entries, " +
+                  codeIdMap.size() + " codes, " + nodeTreeList.length + " trie nodes");
+    }
+
+    private long internKey(String key)
+    {
+      String[] codes = key.split(" ");
+      if(codes.length > MAX_KEY_LENGTH)
+        return -1;
+      long packedKey = 0;
+      for(int i = 0; i < codes.length; ++i) {
+        Integer codeId = codeIdMap.get(codes[i]);
+        if(codeId == null) {
+          if(codeIdMap.size() >= MAX_CODE_ID)
+            return -1;
+          codeId = codeIdMap.size() + 1;
+          codeIdMap.put(codes[i], codeId);
+        }
+        packedKey |= (long)codeId << (CODE_BITS * (MAX_KEY_LENGTH - 1 - i));
+      }
+      return packedKey;
+    }
+
+    private static int getKeyLength(long key)
+    {
+      int length = 0;
+      while(length < MAX_KEY_LENGTH && getKeyCodeId(key, length) != 0)
+        ++length;
+      return length;
+    }
+
+    private static int getKeyCodeId(long key, int index)
+    {
+      return (int)(key >>> (CODE_BITS * (MAX_KEY_LENGTH - 1 - index))) & MAX_CODE_ID;
+    }
+
+    private void pack(Map<Long, int[]> treeMap)
+    {
+      int treeCount = treeMap.size();
+      keyList = new long[treeCount];
+      int i = 0;
+      for(long key: treeMap.keySet())
+        keyList[i++] = key;
+      Arrays.sort(keyList);
+
+      weightList = new int[treeCount];
+      orderList = new int[treeCount];
+      rangeList = new int[treeCount * rangeCount * 2];
+      for(i = 0; i < treeCount; ++i) {
+        int[] tree = treeMap.get(keyList[i]);
+        weightList[i] = tree[0];
+        orderList[i] = tree[1];
+        System.arraycopy(tree, 2, rangeList, i * rangeCount * 2, rangeCount * 2);
+      }
+
+      // Sorted keys come in preorder of the trie, so the key shares nodes
+      // with the previous one as long as their codes are the same
+      List<int[]> nodeList = new ArrayList<>();
+      nodeList.add(new int[] { -1, 0, -1, 0, 0 }); // parent, code id, tree, height, max weight
+      int[] path = new int[MAX_KEY_LENGTH + 1];
+      for(i = 0; i < treeCount; ++i) {
+        long key = keyList[i];
+        int length = getKeyLength(key);
+        int commonLength = (i > 0 ? getCommonLength(keyList[i - 1], key) : 0);
+        for(int depth = 0; depth <= length; ++depth) {
+          if(depth > commonLength) {
+            path[depth] = nodeList.size();
+            nodeList.add(new int[] { path[depth - 1], getKeyCodeId(key, depth - 1), -1, 0, 0 });
+          }
+          int[] node = nodeList.get(path[depth]);
+          node[3] = Math.max(node[3], length - depth);
+          node[4] = Math.max(node[4], weightList[i]);
+        }
+        nodeList.get(path[length])[2] = i;
+      }
+
+      int nodeCount = nodeList.size();
+      nodeTreeList = new int[nodeCount];
+      nodeHeightList = new int[nodeCount];
+      nodeMaxWeightList = new int[nodeCount];
+      childStartList = new int[nodeCount + 1];
+      for(int node = 0; node < nodeCount; ++node) {
+        int[] entry = nodeList.get(node);
+        nodeTreeList[node] = entry[2];
+        nodeHeightList[node] = entry[3];
+        nodeMaxWeightList[node] = entry[4];
+        if(entry[0] >= 0)
+          ++childStartList[entry[0] + 1];
+      }
+      for(int node = 0; node < nodeCount; ++node)
+        childStartList[node + 1] += childStartList[node];
+      childCodeIdList = new int[nodeCount - 1];
+      childNodeList = new int[nodeCount - 1];
+      int[] childCountList = new int[nodeCount];
+      for(int node = 1; node < nodeCount; ++node) {
+        int[] entry = nodeList.get(node);
+        int pos = childStartList[entry[0]] + childCountList[entry[0]]++;
+        childCodeIdList[pos] = entry[1];
+        childNodeList[pos] = node;
+      }
+    }
+
+    private void save(DataOutputStream out)
+      throws IOException
+    {
+      out.writeInt(rangeCount);
+      String[] codeList = new String[codeIdMap.size()];
+      for(Map.Entry<String, Integer> entry: codeIdMap.entrySet())
+        codeList[entry.getValue() - 1] = entry.getKey();
+      out.writeInt(codeList.length);
+      for(String code: codeList)
+        KnowledgeBaseArtifact.writeString(out, code);
+
+      KnowledgeBaseArtifact.writeLongList(out, keyList);
+      KnowledgeBaseArtifact.writeIntList(out, weightList);
+      KnowledgeBaseArtifact.writeIntList(out, orderList);
+      KnowledgeBaseArtifact.writeIntList(out, rangeList);
+      KnowledgeBaseArtifact.writeIntList(out, childStartList);
+      KnowledgeBaseArtifact.writeIntList(out, childCodeIdList);
+      KnowledgeBaseArtifact.writeIntList(out, childNodeList);
+      KnowledgeBaseArtifact.writeIntList(out, nodeTreeList);
+      KnowledgeBaseArtifact.writeIntList(out, nodeHeightList);
+      KnowledgeBaseArtifact.writeIntList(out, nodeMaxWeightList);
+    }
+
+    private boolean unpack(ByteBuffer section)
+    {
+      if(section.getInt() != rangeCount)
+        return false;
+      int codeCount = section.getInt();
+      for(int i = 0; i < codeCount; ++i)
+        codeIdMap.put(KnowledgeBaseArtifact.readString(section), i + 1);
+
+      keyList = KnowledgeBaseArtifact.readLongList(section);
+      weightList = KnowledgeBaseArtifact.readIntList(section);
+      orderList = KnowledgeBaseArtifact.readIntList(section);
+      rangeList = KnowledgeBaseArtifact.readIntList(section);
+      childStartList = KnowledgeBaseArtifact.readIntList(section);
+      childCodeIdList = KnowledgeBaseArtifact.readIntList(section);
+      childNodeList = KnowledgeBaseArtifact.readIntList(section);
+      nodeTreeList = KnowledgeBaseArtifact.readIntList(section);
+      nodeHeightList = KnowledgeBaseArtifact.readIntList(section);
+      nodeMaxWeightList = KnowledgeBaseArtifact.readIntList(section);
+      return true;
+    }
+
+    private static int getCommonLength(long key1, long key2)
+    {
+      int length = 0;
+      while(length < MAX_KEY_LENGTH && getKeyCodeId(key1, length) != 0 &&
+            getKeyCodeId(key1, length) == getKeyCodeId(key2, length))
+        ++length;
+      return length;
+    }
+
+    private int findChild(int node, int codeId)
+    {
+      for(int i = childStartList[node]; i < childStartList[node + 1]; ++i)
+        if(childCodeIdList[i] == codeId)
+          return childNodeList[i];
+      return -1;
+    }
+
+    private int getCodeId(String code)
+    {
+      Integer codeId = codeIdMap.get(code);
+      return (codeId != null ? codeId : 0);
+    }
+
+    public TokenizerTree find(String key)
+    {
+      String[] codes = key.split(" ");
+      if(codes.length > MAX_KEY_LENGTH)
+        return null;
+      long packedKey = 0;
+      for(int i = 0; i < codes.length; ++i) {
+        int codeId = getCodeId(codes[i]);
+        if(codeId == 0)
+          return null;
+        packedKey |= (long)codeId << (CODE_BITS * (MAX_KEY_LENGTH - 1 - i));
+      }
+
+      int tree = Arrays.binarySearch(keyList, packedKey);
+      if(tree < 0)
+        return null;
+
+      List<Range> treeRangeList = new ArrayList<>();
+      for(int i = 0; i < rangeCount; ++i)
+        treeRangeList.add(new Range(getRangeStart(tree, i), getRangeLength(tree, i)));
+      return new TokenizerTree(weightList[tree], orderList[tree], treeRangeList);
+    }
+
+    public int getMaxKeyLength()
+    {
+      return nodeHeightList[0];
+    }
+
+    public int getRangeStart(int tree, int range)
+    {
+      return rangeList[(tree * rangeCount + range) * 2];
+    }
+
+    public int getRangeLength(int tree, int range)
+    {
+      return rangeList[(tree * rangeCount + range) * 2 + 1];
+    }
+
+    // Picks the tree for the best of token category combinations: the one
+    // of maximum total weight, then of maximum tree order, then the first.
+    // Gives up with -1 after visiting maxSolutionCount trie paths
+    public int findBest(List<List<TokenCategory>> tokenCategoryList, int maxSolutionCount)
+    {
+      BestPathSearch search = new BestPathSearch(tokenCategoryList, maxSolutionCount);
+      search.walk(0, 0, 0);
+      search.workspace.probe.count(Metrics.SOLUTION_COUNT, maxSolutionCount - search.solutionCount);
+      if(search.isAborted) {
+        solutionCountGuardCount.increment();
+        return -1;
+      }
+      return search.tree;
+    }
+  }
+
+  //
+
+  private static final class TransformScheme
+    implements StringOperator
+  {
+    private Map<String, String> schemeMap;
+
+    public TransformScheme(KnowledgeBase knowledgeBase, String resourceName)
+    {
+      schemeMap = new HashMap<String, String>();
+
+      boolean isLoaded = knowledgeBase.load(resourceName, parts ->
+      {
+        if(parts.length == 2)
+          schemeMap.put(parts[0], parts[1]);
+        return true;
+      });
+
+      if(!isLoaded) {
+        schemeMap.clear();
+        return;
+      }
+
+      logger.info(resourceName + ": loaded " + schemeMap.size() + " entries");
+    }
+
+    @Override
+    public String apply(String string)
+    {
+      String found = schemeMap.get(string);
+      return (found != null ? found : string);
+    }
+  }
+
+  // Complexity guards. Input that hits a guard gets the same code as
+  // the one no forest tree matches
+
+  private static final int maxTokenCount = 
+    Integer.getInteger("matchcoder.maxTokenCount", 64);
+
+  private static final int maxSolutionCount = 
+    Integer.getInteger("matchcoder.maxSolutionCount", 1000000);
+
+  private static final LongAdder tokenCountGuardCount = new LongAdder();
+  private static final LongAdder forestWidthGuardCount = new LongAdder();
+  private static final LongAdder solutionCountGuardCount = new LongAdder();
+
+  private static boolean checkTokenCount(List<String> tokenList, TokenizerForest forest)
+  {
+    if(tokenList.size() > maxTokenCount) {
+      tokenCountGuardCount.increment();
+      return false;
+    }
+    // No forest key is that long
+    if(tokenList.size() > forest.getMaxKeyLength()) {
+      forestWidthGuardCount.increment();
+      return false;
+    }
+    return true;
+  }
+
+  // Inputs with more tokens than matchcoder.maxTokenCount
+  public static long getTokenCountGuardCount()
+  {
+    return tokenCountGuardCount.sum();
+  }
+
+  // Inputs with more tokens than the longest forest key
+  public static long getForestWidthGuardCount()
+  {
+    return forestWidthGuardCount.sum();
+  }
+
+  // Inputs which parse search gave up after matchcoder.maxSolutionCount steps
+  public static long getSolutionCountGuardCount()
+  {
+    return solutionCountGuardCount.sum();
+  }
+
+  // Bounded cache of values by string keys, each value made by some
+  // knowledge base version. Entries are kept by W-TinyLFU policy: new entry
+  // gets into small LRU window first, and on leaving it takes place of the
+  // main area's victim only if it is asked for more often, as estimated by
+  // frequency sketch. So one-off keys can't flush the frequent ones. Main
+  // area is segmented LRU: entries asked again there become protected.
+  // Lock striped by key hash
+
+  private static final class TinyLfuCache<V>
+  {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final int MAX_SEGMENT_COUNT = 64;
+    private static final int MIN_SEGMENT_CAPACITY = 64;
+
+    private final List<Segment> segmentList;
+    private final int segmentShift;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    private final class Node
+    {
+      private String key;
+      private String version;
+      private V value;
+      private int queue;
+      private Node prev;
+      private Node next;
+
+      public Node()
+      {
+        prev = this;
+        next = this;
+      }
+    }
+
+    // Count-min sketch of 4-bit counters, halved after as many additions
+    // as ten times of the capacity, so the history fades out
+    private static final class FrequencySketch
+    {
+      private static final int[] SEEDS = { 0x97cb3127, 0x7a4f2c6b, 0x5c3ac8e1, 0x3f2e6d4b };
+
+      private int[] table;
+      private int width;
+      private int sampleSize;
+      private int additionCount;
+
+      public FrequencySketch(int capacity)
+      {
+        width = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1);
+        table = new int[width * SEEDS.length];
+        sampleSize = capacity * 10;
+      }
+
+      private int indexOf(int hash, int row)
+      {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 17;
+        return row * width + (h & (width - 1));
+      }
+
+      public void increment(int hash)
+      {
+        for(int row = 0; row < SEEDS.length; ++row) {
+          int index = indexOf(hash, row);
+          if(table[index] < 15)
+            ++table[index];
+        }
+        if(++additionCount >= sampleSize) {
+          for(int i = 0; i < table.length; ++i)
+            table[i] >>>= 1;
+          additionCount /= 2;
+        }
+      }
+
+      public int frequency(int hash)
+      {
+        int frequency = Integer.MAX_VALUE;
+        for(int row = 0; row < SEEDS.length; ++row)
+          frequency = Math.min(frequency, table[indexOf(hash, row)]);
+        return frequency;
+      }
+    }
+
+    private final class Segment
+    {
+      private HashMap<String, Node> nodeMap;
+      private FrequencySketch sketch;
+      // Sentinels of circular lists, least recently used first
+      private List<Node> headList;
+      private int[] sizeList;
+      private int windowCapacity;
+      private int mainCapacity;
+      private int protectedCapacity;
+
+      public Segment(int capacity)
+      {
+        nodeMap = new HashMap<>();
+        sketch = new FrequencySketch(capacity);
+        headList = Arrays.asList(new Node(), new Node(), new Node());
+        sizeList = new int[3];
+        windowCapacity = Math.max(1, capacity / 100);
+        mainCapacity = Math.max(1, capacity - windowCapacity);
+        protectedCapacity = mainCapacity * 4 / 5;
+      }
+
+      private void unlink(Node node)
+      {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        --sizeList[node.queue];
+      }
+
+      private void link(Node node, int queue)
+      {
+        Node head = headList.get(queue);
+        node.queue = queue;
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        ++sizeList[queue];
+      }
+
+      private void evict(Node node)
+      {
+        nodeMap.remove(node.key);
+        evictionCount.increment();
+      }
+
+      public synchronized V get(String key, int hash, String version)
+      {
+        sketch.increment(hash);
+        Node node = nodeMap.get(key);
+        if(node == null || !node.version.equals(version))
+          return null;
+
+        unlink(node);
+        if(node.queue == PROBATION) {
+          link(node, PROTECTED);
+          if(sizeList[PROTECTED] > protectedCapacity) {
+            Node demoted = headList.get(PROTECTED).next;
+            unlink(demoted);
+            link(demoted, PROBATION);
+          }
+        }
+        else
+          link(node, node.queue);
+        return node.value;
+      }
+
+      public synchronized void put(String key, int hash, String version, V value)
+      {
+        Node node = nodeMap.get(key);
+        if(node != null) {
+          node.version = version;
+          node.value = value;
+          return;
+        }
+
+        node = new Node();
+        node.key = key;
+        node.version = version;
+        node.value = value;
+        nodeMap.put(key, node);
+        link(node, WINDOW);
+        if(sizeList[WINDOW] <= windowCapacity)
+          return;
+
+        Node candidate = headList.get(WINDOW).next;
+        unlink(candidate);
+        if(sizeList[PROBATION] + sizeList[PROTECTED] < mainCapacity) {
+          link(candidate, PROBATION);
+          return;
+        }
+        int victimQueue = (sizeList[PROBATION] > 0 ? PROBATION : PROTECTED);
+        Node victim = headList.get(victimQueue).next;
+        if(sketch.frequency(spread(candidate.key.hashCode())) >
+          sketch.frequency(spread(victim.key.hashCode())))
+        {
+          unlink(victim);
+          evict(victim);
+          link(candidate, PROBATION);
+        }
+        else
+          evict(candidate);
+      }
+    }
+
+    public TinyLfuCache(int capacity)
+    {
+      int segmentCount = Math.min(MAX_SEGMENT_COUNT, 
+        Integer.highestOneBit(Math.max(1, capacity / MIN_SEGMENT_CAPACITY)));
+      segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+      segmentList = new ArrayList<>();
+      for(int i = 0; i < segmentCount; ++i)
+        segmentList.add(new Segment(Math.max(1, capacity / segmentCount)));
+    }
+
+    private static int spread(int hash)
+    {
+      return (hash ^ (hash >>> 16)) * 0x9e3779b9;
+    }
+
+    private Segment getSegment(int hash)
+    {
+      return (segmentShift == 32 ? segmentList.get(0) : segmentList.get(hash >>> segmentShift));
+    }
+
+    public V get(String key, String version)
+    {
+      int hash = spread(key.hashCode());
+      V value = getSegment(hash).get(key, hash, version);
+      if(value != null)
+        hitCount.increment();
+      else
+        missCount.increment();
+      return value;
+    }
+
+    public void put(String key, String version, V value)
+    {
+      int hash = spread(key.hashCode());
+      getSegment(hash).put(key, hash, version, value);
+    }
+
+    public long getHitCount()
+    {
+      return hitCount.sum();
+    }
+
+    public long getMissCount()
+    {
+      return missCount.sum();
+    }
+
+    public long getEvictionCount()
+    {
+      return evictionCount.sum();
+    }
+  }
+
+  // Optional cache of matchcodes by input, one per entry point, shared by
+  // all the engines. Input is the key as is, since even trailing spaces may
+  // matter to the preprocessing rules
+
+  private static final int resultCacheSize = 
+    Integer.getInteger("matchcoder.resultCacheSize", 0);
+
+  private static final TinyLfuCache<String> privResultCache =
+    (resultCacheSize > 0 ? new TinyLfuCache<String>(resultCacheSize) : null);
+
+  private static final TinyLfuCache<String> orgResultCache =
+    (resultCacheSize > 0 ? new TinyLfuCache<String>(resultCacheSize) : null);
+
+  public static long getResultCacheHitCount()
+  {
+    return (privResultCache != null ? 
+      privResultCache.getHitCount() + orgResultCache.getHitCount() : 0);
+  }
+
+  public static long getResultCacheMissCount()
+  {
+    return (privResultCache != null ? 
+      privResultCache.getMissCount() + orgResultCache.getMissCount() : 0);
+  }
+
+  public static long getResultCacheEvictionCount()
+  {
+    return (privResultCache != null ? 
+      privResultCache.getEvictionCount() + orgResultCache.getEvictionCount() : 0);
+  }
+
+  // Optional caches of per token results, by role of the token. Full names
+  // are mostly unique, while tokens they are made of are not, so expensive
+  // categorization and phonetics are done once per distinct token
+
+  private static final int tokenCacheSize = 
+    Integer.getInteger("matchcoder.tokenCacheSize", 0);
+
+  private static final TinyLfuCache<TokenCategory[]> privCategoryCache = newTokenCache();
+  private static final TinyLfuCache<String> familyCache = newTokenCache();
+  private static final TinyLfuCache<String> nameCache = newTokenCache();
+  private static final TinyLfuCache<String> patronymCache = newTokenCache();
+  private static final TinyLfuCache<TokenCategory[]> orgCategoryCache = newTokenCache();
+  private static final TinyLfuCache<String> orgWordCache = newTokenCache();
+
+  private static <V> TinyLfuCache<V> newTokenCache()
+  {
+    return (tokenCacheSize > 0 ? new TinyLfuCache<V>(tokenCacheSize) : null);
+  }
+
+  private static TinyLfuCache<?> getTokenCache(String role)
+  {
+    switch(role) {
+      case "privCategory": return privCategoryCache;
+      case "family": return familyCache;
+      case "name": return nameCache;
+      case "patronym": return patronymCache;
+      case "orgCategory": return orgCategoryCache;
+      case "orgWord": return orgWordCache;
+      default: throw new IllegalArgumentException("unknown token role: " + role);
+    }
+  }
+
+  // Roles are privCategory, family, name, patronym, orgCategory and orgWord
+  public static long getTokenCacheHitCount(String role)
+  {
+    TinyLfuCache<?> cache = getTokenCache(role);
+    return (cache != null ? cache.getHitCount() : 0);
+  }
+
+  public static long getTokenCacheMissCount(String role)
+  {
+    TinyLfuCache<?> cache = getTokenCache(role);
+    return (cache != null ? cache.getMissCount() : 0);
+  }
+
+  public static long getTokenCacheEvictionCount(String role)
+  {
+    TinyLfuCache<?> cache = getTokenCache(role);
+    return (cache != null ? cache.getEvictionCount() : 0);
+  }
+
+  // Histogram of non-negative values, lock free. Values are bucketed by
+  // the highest bit and three bits next to it, so buckets are exact below
+  // 16 and within 1/8 of the value above
+
+  static final class Histogram
+  {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int EXACT_LIMIT = 1 << (SUB_BUCKET_BITS + 1);
+
+    private final AtomicLongArray countList = new AtomicLongArray(64 << SUB_BUCKET_BITS);
+
+    private static int indexOf(long value)
+    {
+      if(value < EXACT_LIMIT)
+        return (int)Math.max(value, 0);
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      return (shift << SUB_BUCKET_BITS) + (int)(value >>> shift);
+    }
+
+    // Highest value of the bucket
+    private static long valueOf(int index)
+    {
+      if(index < EXACT_LIMIT - 1)
+        return index;
+      int shift = ((index + 1) >>> SUB_BUCKET_BITS) - 1;
+      long next = (long)((index + 1) - (shift << SUB_BUCKET_BITS)) << shift;
+      return next - 1;
+    }
+
+    public void record(long value)
+    {
+      countList.incrementAndGet(indexOf(value));
+    }
+
+    public void reset()
+    {
+      for(int i = 0; i < countList.length(); ++i)
+        countList.set(i, 0);
+    }
+
+    // Count, percentiles and count of each bucket up to its highest value
+    public void snapshot(String name, Map<String, Long> map)
+    {
+      long[] countCopy = new long[countList.length()];
+      long count = 0;
+      for(int i = 0; i < countCopy.length; ++i)
+        count += (countCopy[i] = countList.get(i));
+      map.put(name + ".count", count);
+      if(count == 0)
+        return;
+
+      double[] fractionList = { 0.5, 0.9, 0.99, 0.999, 1 };
+      String[] suffixList = { ".p50", ".p90", ".p99", ".p999", ".max" };
+      long sum = 0;
+      int f = 0;
+      for(int i = 0; i < countCopy.length && f < fractionList.length; ++i) {
+        sum += countCopy[i];
+        while(f < fractionList.length && sum >= Math.ceil(count * fractionList[f]))
+          map.put(name + suffixList[f++], valueOf(i));
+      }
+      for(int i = 0; i < countCopy.length; ++i) {
+        if(countCopy[i] > 0)
+          map.put(name + ".le." + valueOf(i), countCopy[i]);
+      }
+    }
+  }
+
+  // Opt-in metrics of matchcoding, on if matchcoder.metricsSampleRate is
+  // set. Calls and fallbacks are counted all, while stage time, latency,
+  // token count and parse search steps are measured for each of that many
+  // calls. Being off the metrics are folded away by JIT, and sampled out
+  // call costs just a countdown of its thread
+
+  private static final class Metrics
+  {
+    public static final int PRIV = 0;
+    public static final int ORG = 1;
+    private static final String[] pipelineNameList = { "priv", "org" };
+
+    public static final int PREPROC = 0;
+    public static final int CHOP = 1;
+    public static final int TRANSLIT = 2;
+    public static final int CATEGORIZE = 3;
+    public static final int SEARCH = 4;
+    public static final int PHONETICS = 5;
+    public static final int FINAL = 6;
+    private static final String[] stageNameList = 
+      { "preproc", "chop", "translit", "categorize", "search", "phonetics", "final" };
+
+    public static final int LATENCY = 0;
+    public static final int TOKEN_COUNT = 1;
+    public static final int SOLUTION_COUNT = 2;
+    private static final String[] histogramNameList = { "latencyNanos", "tokenCount", "solutionCount" };
+
+    // State of the call on its thread
+    public static final class Probe
+    {
+      private boolean isActive;
+      private int pipeline;
+      private long startTime;
+      private long markTime;
+      // Calls left to the next sampled one, by pipeline, so calls of
+      // one pipeline interleaving with another don't skew sampling
+      private int[] countdownList = new int[pipelineNameList.length];
+
+      // Time since the previous mark goes to the stage
+      public void mark(int stage)
+      {
+        if(!isActive)
+          return;
+        long time = System.nanoTime();
+        metrics.addStageTime(pipeline, stage, time - markTime);
+        markTime = time;
+      }
+
+      public void count(int histogram, long value)
+      {
+        if(isActive)
+          metrics.getHistogram(pipeline, histogram).record(value);
+      }
+    }
+
+    private final int sampleRate;
+    private final LongAdder[] callCountList;
+    private final LongAdder[] sampleCountList;
+    private final LongAdder[] fallbackCountList;
+    private final LongAdder[] stageTimeList;
+    private final LongAdder[] stageCountList;
+    private final Histogram[] histogramList;
+
+    public Metrics(int sampleRate)
+    {
+      this.sampleRate = sampleRate;
+      callCountList = newAdderList(pipelineNameList.length);
+      sampleCountList = newAdderList(pipelineNameList.length);
+      fallbackCountList = newAdderList(pipelineNameList.length);
+      stageTimeList = newAdderList(pipelineNameList.length * stageNameList.length);
+      stageCountList = newAdderList(pipelineNameList.length * stageNameList.length);
+      histogramList = new Histogram[pipelineNameList.length * histogramNameList.length];
+      for(int i = 0; i < histogramList.length; ++i)
+        histogramList[i] = new Histogram();
+    }
+
+    private static LongAdder[] newAdderList(int length)
+    {
+      LongAdder[] adderList = new LongAdder[length];
+      for(int i = 0; i < length; ++i)
+        adderList[i] = new LongAdder();
+      return adderList;
+    }
+
+    private void addStageTime(int pipeline, int stage, long time)
+    {
+      stageTimeList[pipeline * stageNameList.length + stage].add(time);
+      stageCountList[pipeline * stageNameList.length + stage].increment();
+    }
+
+    private Histogram getHistogram(int pipeline, int histogram)
+    {
+      return histogramList[pipeline * histogramNameList.length + histogram];
+    }
+
+    public void countFallback(int pipeline)
+    {
+      fallbackCountList[pipeline].increment();
+    }
+
+    // Probe of the call if it is sampled, else null
+    public Probe begin(int pipeline)
+    {
+      callCountList[pipeline].increment();
+      Probe probe = Workspace.get().probe;
+      if(--probe.countdownList[pipeline] > 0 || probe.isActive)
+        return null;
+      probe.countdownList[pipeline] = sampleRate;
+      probe.isActive = true;
+      probe.pipeline = pipeline;
+      probe.startTime = System.nanoTime();
+      probe.markTime = probe.startTime;
+      sampleCountList[pipeline].increment();
+      return probe;
+    }
+
+    public void end(Probe probe)
+    {
+      getHistogram(probe.pipeline, LATENCY).record(System.nanoTime() - probe.startTime);
+      probe.isActive = false;
+    }
+
+    public void reset()
+    {
+      for(LongAdder[] adderList: Arrays.asList(callCountList, sampleCountList, fallbackCountList,
+                                                 stageTimeList, stageCountList))
+      {
+        for(LongAdder adder: adderList)
+          adder.reset();
+      }
+      for(Histogram histogram: histogramList)
+        histogram.reset();
+    }
+
+    public void snapshot(Map<String, Long> map)
+    {
+      map.put("sampleRate", (long)sampleRate);
+      for(int pipeline = 0; pipeline < pipelineNameList.length; ++pipeline) {
+        String name = pipelineNameList[pipeline];
+        map.put(name + ".calls", callCountList[pipeline].sum());
+        map.put(name + ".sampledCalls", sampleCountList[pipeline].sum());
+        map.put(name + ".fallbacks", fallbackCountList[pipeline].sum());
+        for(int stage = 0; stage < stageNameList.length; ++stage) {
+          int index = pipeline * stageNameList.length + stage;
+          map.put(name + ".stage." + stageNameList[stage] + ".nanos", stageTimeList[index].sum());
+          map.put(name + ".stage." + stageNameList[stage] + ".count", stageCountList[index].sum());
+        }
+        for(int histogram = 0; histogram < histogramNameList.length; ++histogram)
+          getHistogram(pipeline, histogram).snapshot(name + "." + histogramNameList[histogram], map);
+      }
+    }
+  }
+
+  private static final int metricsSampleRate = 
+    Integer.getInteger("matchcoder.metricsSampleRate", 0);
+
+  private static final Metrics metrics = 
+    (metricsSampleRate > 0 ? new Metrics(metricsSampleRate) : null);
+
+  // Metrics exposed via JMX as MatchCoder:type=Metrics, if they are on
+  public static interface MetricsMXBean
+  {
+    public Map<String, Long> getSnapshot();
+    public void reset();
+  }
+
+  private static final class MetricsBean
+    implements MetricsMXBean
+  {
+    public Map<String, Long> getSnapshot()
+    {
+      return getMetricsSnapshot();
+    }
+
+    public void reset()
+    {
+      resetMetrics();
+    }
+  }
+
+  static {
+    if(metrics != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new MetricsBean(), new ObjectName("MatchCoder:type=Metrics"));
+      }
+      catch(Exception | LinkageError e) {
+        logger.warning("metrics are not exposed via JMX: " + e);
+      }
+    }
+  }
+
+  // Guard, cache and rule counts, and metrics if they are on. Time is given in
+  // nanoseconds, histogram bucket counts are keyed by the highest value
+  // of the bucket (.le.<value>)
+  public static Map<String, Long> getMetricsSnapshot()
+  {
+    Map<String, Long> map = new TreeMap<>();
+    map.put("guard.tokenCount", getTokenCountGuardCount());
+    map.put("guard.forestWidth", getForestWidthGuardCount());
+    map.put("guard.solutionCount", getSolutionCountGuardCount());
+    map.put("resultCache.hits", getResultCacheHitCount());
+    map.put("resultCache.misses", getResultCacheMissCount());
+    map.put("resultCache.evictions", getResultCacheEvictionCount());
+    for(String role: Arrays.asList("privCategory", "family", "name", "patronym", "orgCategory", "orgWord")) {
+      map.put("tokenCache." + role + ".hits", getTokenCacheHitCount(role));
+      map.put("tokenCache." + role + ".misses", getTokenCacheMissCount(role));
+      map.put("tokenCache." + role + ".evictions", getTokenCacheEvictionCount(role));
+    }
+    for(Map.Entry<String, Long> entry: defaultEngine.getRuleCounts().entrySet())
+      map.put("rule." + entry.getKey(), entry.getValue());
+    if(metrics != null)
+      metrics.snapshot(map);
+    return map;
+  }
+
+  // Guard, cache and rule counts are not reset
+  public static void resetMetrics()
+  {
+    if(metrics != null)
+      metrics.reset();
+  }
+
+  // Used by MatchCoderKb tool
+  static void compileKnowledgeBase(Path path, String version, List<Path> folderList)
+    throws IOException
+  {
+    KnowledgeBaseArtifact.compile(path, version, new TextKnowledgeBase(folderList));
+  }
+
+  // Input of nothing but spaces gets empty code
+  private static boolean isBlank(String string)
+  {
+    for(int i = 0; i < string.length(); ++i) {
+      char ch = string.charAt(i);
+      if(ch != ' ' && ch != '\u00a0')
+        return false;
+    }
+    return true;
+  }
+
+  private static void appendConcat(StringBuilder builder, String string)
+  {
+    for(int i = 0; i < string.length(); ++i) {
+      char ch = string.charAt(i);
+      if(ch != ' ' && ch != '\u00a0')
+        builder.append(ch);
+    }
+  }
+
+  private static boolean isNumber(String token)
+  {
+    for(int i = 0; i < token.length(); ++i) {
+      char ch = token.charAt(i);
+      if(ch < '0' || ch > '9')
+        return false;
+    }
+    return true;
+  }
+
+  // Cuts or pads with '$' whatever is appended from the start to the length
+  private static void pad(StringBuilder builder, int start, int length)
+  {
+    if(builder.length() > start + length)
+      builder.setLength(start + length);
+    while(builder.length() < start + length)
+      builder.append('$');
+  }
+
+  // Single stage of a pipeline, to be measured by benchmarks. Input of the
+  // stage is prepared from the full name by the stages before it, so just
+  // the stage itself runs on apply(). Not a part of the API: benchmarks
+  // reach it by reflection
+
+  static final class Stage
+    implements Function<Object, Object>
+  {
+    private final Function<String, Object> preparer;
+    private final Function<Object, Object> operator;
+
+    private Stage(Function<String, Object> preparer, Function<Object, Object> operator)
+    {
+      this.preparer = preparer;
+      this.operator = operator;
+    }
+
+    Object prepare(String fullName)
+    {
+      return preparer.apply(fullName);
+    }
+
+    public Object apply(Object input)
+    {
+      return operator.apply(input);
+    }
+  }
+
+  // Stage of the default engine by name: priv.<stage>, org.<stage>, or
+  // priv.phonetics.<resource name> for any phonetics resource. See
+  // getStage() of the pipelines for stage names. Resources are got under
+  // the engine lock, as pipelines being built do
+  static Stage getStage(String name)
+  {
+    Engine engine = defaultEngine;
+    Stage stage = null;
+    synchronized(engine) {
+      if(name.startsWith("priv."))
+        stage = engine.getPrivPipeline().getStage(name.substring(5), engine);
+      else if(name.startsWith("org."))
+        stage = engine.getOrgPipeline().getStage(name.substring(4), engine);
+    }
+    if(stage == null)
+      throw new IllegalArgumentException("unknown stage: " + name);
+    return stage;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T cast(Object object)
+  {
+    return (T)object;
+  }
+
+  private static List<String> toUpperCase(List<String> list)
+  {
+    List<String> result = new ArrayList<>();
+    for(String string: list)
+      result.add(string.toUpperCase());
+    return result;
+  }
+
+  private static String applyEach(StringOperator operator, List<String> list)
+  {
+    String result = null;
+    for(String string: list)
+      result = operator.apply(string);
+    return result;
+  }
+
+  // Final phonetics of codes by level, run once for the same codes in a row
+  private static void applyFinal(StringOperator finalPhonetics, String[] codeList)
+  {
+    String previous = null;
+    for(int i = 0; i < codeList.length; ++i) {
+      String code = codeList[i];
+      codeList[i] = (code.equals(previous) ? codeList[i - 1] : finalPhonetics.apply(code));
+      previous = code;
+    }
+  }
+
+  // Padding of the code segments, which are taken from the assembled code
+  private static Stage newPadStage(Function<String, String> assembler, int... lengthList)
+  {
+    return new Stage(
+      fullName ->
+      {
+        String code = assembler.apply(fullName);
+        List<String> segmentList = new ArrayList<>();
+        int start = 0;
+        for(int length: lengthList) {
+          int end = start + length;
+          while(end > start && code.charAt(end - 1) == '$')
+            --end;
+          segmentList.add(code.substring(start, end));
+          start += length;
+        }
+        return segmentList;
+      },
+      input ->
+      {
+        List<String> segmentList = cast(input);
+        StringBuilder code = Workspace.get().getCodeBuilder();
+        int start = 0;
+        for(int i = 0; i < lengthList.length; ++i) {
+          code.append(segmentList.get(i));
+          pad(code, start, lengthList[i]);
+          start += lengthList[i];
+        }
+        return code.toString();
+      });
+  }
+
+  // Levels of sensitivity of matchcodes. The lower the level the looser
+  // the code, so more different names share it. Levels differ just by post
+  // phonetics: fricative consonant reduction is off for 85 (the default),
+  // on for 80, and followed by the advanced one for 75. So several levels
+  // are computed by a single parse, with post phonetics run per level
+
+  public static final int DEFAULT_SENSITIVITY = 85;
+  private static final int[] SENSITIVITY_LIST = { 85, 80, 75 };
+
+  public static int[] getSensitivityList()
+  {
+    return SENSITIVITY_LIST.clone();
+  }
+
+  // Indices of the levels in the list of sensitivities
+  private static int[] getLevelList(int[] sensitivityList)
+  {
+    int[] levelList = new int[sensitivityList.length];
+    for(int i = 0; i < sensitivityList.length; ++i) {
+      levelList[i] = -1;
+      for(int level = 0; level < SENSITIVITY_LIST.length; ++level) {
+        if(SENSITIVITY_LIST[level] == sensitivityList[i])
+          levelList[i] = level;
+      }
+      if(levelList[i] < 0)
+        throw new IllegalArgumentException("unsupported sensitivity: " + sensitivityList[i] +
+                                           ", supported are " + Arrays.toString(SENSITIVITY_LIST));
+    }
+    return levelList;
+  }
+
+  private static int getLevelMask(int[] levelList)
+  {
+    int levelMask = 0;
+    for(int level: levelList)
+      levelMask |= 1 << level;
+    return levelMask;
+  }
+
+  // Post phonetics of the levels. Each level adds its reduction to the one
+  // before, so forms of the levels are made one from another, and the last
+  // pass is run once per distinct form
+
+  private static final class LevelPhonetics
+  {
+    private final StringOperator[] reductionList;
+    private final StringOperator lastPhonetics;
+
+    public LevelPhonetics(StringOperator[] reductionList, StringOperator lastPhonetics)
+    {
+      this.reductionList = reductionList;
+      this.lastPhonetics = lastPhonetics;
+    }
+
+    // Codes of the form by level, for levels of the mask
+    public String[] apply(String form, int levelMask)
+    {
+      String[] codeList = new String[reductionList.length];
+      String code = null;
+      for(int level = 0; (levelMask >>> level) != 0; ++level) {
+        if(reductionList[level] != null) {
+          String reducedForm = reductionList[level].apply(form);
+          if(!reducedForm.equals(form)) {
+            form = reducedForm;
+            code = null;
+          }
+        }
+        if((levelMask & (1 << level)) != 0) {
+          if(code == null)
+            code = lastPhonetics.apply(form);
+          codeList[level] = code;
+        }
+      }
+      return codeList;
+    }
+  }
+
+  // Private person pipeline
+
+  private static final class PrivPipeline
+  {
+    private final StringOperator preprocPriv;
+    private final StringOperator translit;
+    private final TokenVocabChain tokenVocabPriv;
+    private final Finder familyFinder;
+    private final Finder patronymFinder;
+    private final TokenizerForest tokenizerForestPriv;
+    private final TransformScheme nameTransformScheme;
+    private final StringOperator namePhonetics;
+    private final StringOperator patronymPhonetics;
+    private final StringOperator namePrePhonetics;
+    private final StringOperator patronymPrePhonetics;
+    private final LevelPhonetics levelPhonetics;
+    private final StringOperator finalPhonetics;
+    private final String version;
+
+    public PrivPipeline(Engine engine)
+    {
+      preprocPriv = new StringOperatorChain(Arrays.asList(
+        engine.getReplacerChain("IRBICON Name Organization Preprocessing.rgx.txt"),
+        engine.getReplacerChain("IRBICON Name Parse 2 letters to n-p.rgx.txt")
+      ));
+      translit = engine.getTransliterator("IRBICON Latin to Cyrillic Transliteration.rgx.txt");
+      tokenVocabPriv = new TokenVocabChain(Arrays.asList(
+        engine.getTokenVocab("IRBICON Name.vcb.txt"),
+        engine.getTokenVocab("IRBICON Organization.vcb.txt")
+      ));
+      familyFinder = engine.getFinder("IRBICON Family Name Categorization.rgx.txt");
+      patronymFinder = engine.getFinder("IRBICON Patronymic Name Categorization.rgx.txt");
+      tokenizerForestPriv = engine.getTokenizerForest("IRBICON Name.forest.txt", 3);
+      nameTransformScheme = engine.getTransformScheme("IRBICON Given Name Match Values.sch.txt");
+      namePhonetics = engine.getNamePhonetics();
+      patronymPhonetics = engine.getPatronymPhonetics();
+      namePrePhonetics = engine.getNamePrePhonetics();
+      patronymPrePhonetics = engine.getPatronymPrePhonetics();
+      levelPhonetics = engine.getLevelPhonetics();
+      finalPhonetics = engine.getFinalPhonetics();
+      version = engine.getVersion();
+    }
+
+    private void categorize(String token, String upperToken, List<TokenCategory> categoryList,
+                            Metrics.Probe probe)
+    {
+      TokenCategory[] categories = 
+        (privCategoryCache != null ? privCategoryCache.get(token, version) : null);
+      if(categories != null) {
+        for(TokenCategory category: categories)
+          categoryList.add(category);
+        probe.mark(Metrics.CATEGORIZE);
+        return;
+      }
+
+      String form = translit.apply(upperToken);
+      probe.mark(Metrics.TRANSLIT);
+      tokenVocabPriv.find(form, categoryList);
+
+      if(categoryList.isEmpty()) {
+        if(familyFinder.find(token))
+          categoryList.add(familyWordCategory);
+        if(patronymFinder.find(token))
+          categoryList.add(patronymWordCategory);
+      }
+
+      if(isNumber(token))
+        categoryList.add(numberCategory);
+
+      if(categoryList.isEmpty()) {
+        categoryList.add(anyFamilyWordCategory);
+        categoryList.add(anyNameWordCategory);
+      }
+
+      if(privCategoryCache != null)
+        privCategoryCache.put(token, version, categoryList.toArray(new TokenCategory[0]));
+      probe.mark(Metrics.CATEGORIZE);
+    }
+
+    // Codes are made of upper case forms
+    private String getFamilyCode(String family)
+    {
+      String code = (familyCache != null ? familyCache.get(family, version) : null);
+      if(code == null) {
+        code = translit.apply(family);
+        code = namePhonetics.apply(code);
+        if(familyCache != null)
+          familyCache.put(family, version, code);
+      }
+      return code;
+    }
+
+    private String getNameCode(String name)
+    {
+      String code = (nameCache != null ? nameCache.get(name, version) : null);
+      if(code == null) {
+        code = translit.apply(name);
+        code = nameTransformScheme.apply(code);
+        code = namePhonetics.apply(code);
+        if(nameCache != null)
+          nameCache.put(name, version, code);
+      }
+      return code;
+    }
+
+    private String getPatronymCode(String patronym)
+    {
+      String code = (patronymCache != null ? patronymCache.get(patronym, version) : null);
+      if(code == null) {
+        code = translit.apply(patronym);
+        //FIXME: Is bug here? Whether the phonetics should be applied word by word?
+        code = patronymPhonetics.apply(code);
+        if(patronymCache != null)
+          patronymCache.put(patronym, version, code);
+      }
+      return code;
+    }
+
+    private String fallback(String fullName)
+    {
+      StringBuilder code = Workspace.get().getCodeBuilder();
+      appendConcat(code, fullName);
+      pad(code, 0, 24);
+      if(metrics != null)
+        metrics.countFallback(Metrics.PRIV);
+      return code.toString();
+    }
+
+    public String calc(String fullName)
+    {
+      if(fullName == null)
+        return null;
+    
+      if(isBlank(fullName))
+        return "";
+
+      Workspace workspace = Workspace.get();
+      String code = finalPhonetics.apply(assemble(fullName, workspace));
+      workspace.probe.mark(Metrics.FINAL);
+      return code;
+    }
+
+    // Codes of the levels of sensitivity, by a single parse
+    public String[] calc(String fullName, int[] levelList)
+    {
+      String[] codeList = new String[levelList.length];
+      if(fullName == null)
+        return codeList;
+
+      if(isBlank(fullName)) {
+        Arrays.fill(codeList, "");
+        return codeList;
+      }
+
+      Workspace workspace = Workspace.get();
+      assemble(fullName, workspace, levelList, codeList);
+      applyFinal(finalPhonetics, codeList);
+      workspace.probe.mark(Metrics.FINAL);
+      return codeList;
+    }
+
+    // Code before final phonetics
+    private String assemble(String fullName, Workspace workspace)
+    {
+      int tree = parse(fullName, workspace);
+      if(tree < 0)
+        return fallback(fullName);
+
+      List<String> upperTokenList = workspace.upperTokenList;
+      int familyStart = tokenizerForestPriv.getRangeStart(tree, 0);
+      int familyLength = tokenizerForestPriv.getRangeLength(tree, 0);
+      int nameStart = tokenizerForestPriv.getRangeStart(tree, 1);
+      int nameLength = tokenizerForestPriv.getRangeLength(tree, 1);
+      int patronymStart = tokenizerForestPriv.getRangeStart(tree, 2);
+      int patronymLength = tokenizerForestPriv.getRangeLength(tree, 2);
+
+      String family = "";
+      if(familyLength > 0)
+        family = getFamilyCode(upperTokenList.get(familyStart + familyLength - 1));
+
+      String name = "";
+      if(nameLength > 0)
+        name = getNameCode(upperTokenList.get(nameStart));
+
+      String patronym = "";
+      if(patronymLength > 0)
+        patronym = getPatronymCode(getPatronym(workspace, patronymStart, patronymLength));
+      workspace.probe.mark(Metrics.PHONETICS);
+
+      return assembleCode(workspace, family, name, patronym);
+    }
+
+    // Codes before final phonetics by level. Token caches keep codes of the
+    // default level only, so forms before post phonetics are made here
+    private void assemble(String fullName, Workspace workspace, int[] levelList, String[] codeList)
+    {
+      int tree = parse(fullName, workspace);
+      if(tree < 0) {
+        Arrays.fill(codeList, fallback(fullName));
+        return;
+      }
+
+      List<String> upperTokenList = workspace.upperTokenList;
+      int familyStart = tokenizerForestPriv.getRangeStart(tree, 0);
+      int familyLength = tokenizerForestPriv.getRangeLength(tree, 0);
+      int nameStart = tokenizerForestPriv.getRangeStart(tree, 1);
+      int nameLength = tokenizerForestPriv.getRangeLength(tree, 1);
+      int patronymStart = tokenizerForestPriv.getRangeStart(tree, 2);
+      int patronymLength = tokenizerForestPriv.getRangeLength(tree, 2);
+
+      int levelMask = getLevelMask(levelList);
+
+      String familyForm = "";
+      if(familyLength > 0)
+        familyForm = namePrePhonetics.apply(
+          translit.apply(upperTokenList.get(familyStart + familyLength - 1)));
+      String[] familyList = levelPhonetics.apply(familyForm, levelMask);
+
+      String nameForm = "";
+      if(nameLength > 0)
+        nameForm = namePrePhonetics.apply(
+          nameTransformScheme.apply(translit.apply(upperTokenList.get(nameStart))));
+      String[] nameList = levelPhonetics.apply(nameForm, levelMask);
+
+      String patronymForm = "";
+      if(patronymLength > 0)
+        patronymForm = patronymPrePhonetics.apply(
+          translit.apply(getPatronym(workspace, patronymStart, patronymLength)));
+      String[] patronymList = levelPhonetics.apply(patronymForm, levelMask);
+
+      for(int i = 0; i < levelList.length; ++i) {
+        int level = levelList[i];
+        codeList[i] = assembleCode(workspace, familyList[level], nameList[level], patronymList[level]);
+      }
+      workspace.probe.mark(Metrics.PHONETICS);
+    }
+
+    private static String getPatronym(Workspace workspace, int patronymStart, int patronymLength)
+    {
+      StringBuilder patronymBuilder = workspace.getCodeBuilder();
+      for(int i = patronymStart; i < patronymStart + patronymLength; ++i)
+        patronymBuilder.append(workspace.upperTokenList.get(i));
+      return patronymBuilder.toString();
+    }
+
+    private static String assembleCode(Workspace workspace, String family, String name, String patronym)
+    {
+      StringBuilder code = workspace.getCodeBuilder();
+      code.append(family);
+      pad(code, 0, 11);
+      code.append(name);
+      pad(code, 11, 9);
+      code.append(patronym);
+      pad(code, 20, 4);
+      return code.toString();
+    }
+
+    // Best tree of the parse, or -1 if the name is to get fallback code.
+    // Upper case tokens are left in the workspace
+    private int parse(String fullName, Workspace workspace)
+    {
+      Metrics.Probe probe = workspace.probe;
+
+      String text = preprocPriv.apply(fullName);
+      probe.mark(Metrics.PREPROC);
+      List<String> tokenList = chopper.apply(text, maxTokenCount, workspace);
+      List<String> upperTokenList = workspace.upperTokenList;
+      probe.mark(Metrics.CHOP);
+      probe.count(Metrics.TOKEN_COUNT, tokenList.size());
+      if(!checkTokenCount(tokenList, tokenizerForestPriv))
+        return -1;
+
+      List<List<TokenCategory>> tokenCategoryList = 
+        workspace.getTokenCategoryList(tokenList.size());
+      for(int i = 0; i < tokenList.size(); ++i) {
+        String token = tokenList.get(i);
+        List<TokenCategory> categoryList = tokenCategoryList.get(i);
+        categorize(token, upperTokenList.get(i), categoryList, probe);
+
+        /* DEBUG (add a slash at the start of this line to open code):
+        // Print categories per token:
+        System.out.println(token);
+        for(TokenCategory cat: categoryList)
+        System.out.println("  " + cat.getWeight() + " " + cat.getCode());
+        //*/
+      }
+
+      int tree = tokenizerForestPriv.findBest(tokenCategoryList, maxSolutionCount);
+      probe.mark(Metrics.SEARCH);
+      return tree;
+    }
+
+    private List<String> getTokenList(String fullName)
+    {
+      return chopper.apply(preprocPriv.apply(fullName), maxTokenCount, new ArrayList<String>());
+    }
+
+    private List<String> getFormList(String fullName)
+    {
+      List<String> formList = new ArrayList<>();
+      for(String token: getTokenList(fullName))
+        formList.add(translit.apply(token.toUpperCase()));
+      return formList;
+    }
+
+    private List<List<TokenCategory>> getCategoryList(String fullName)
+    {
+      List<List<TokenCategory>> categoryList = new ArrayList<>();
+      for(String token: getTokenList(fullName)) {
+        categoryList.add(new ArrayList<TokenCategory>());
+        categorize(token, token.toUpperCase(), categoryList.get(categoryList.size() - 1),
+                   Workspace.get().probe);
+      }
+      return categoryList;
+    }
+
+    private List<List<TokenCategory>> categorizeAll(List<String> tokenList)
+    {
+      List<List<TokenCategory>> tokenCategoryList = 
+        Workspace.get().getTokenCategoryList(tokenList.size());
+      for(int i = 0; i < tokenList.size(); ++i)
+        categorize(tokenList.get(i), tokenList.get(i).toUpperCase(), tokenCategoryList.get(i),
+                   Workspace.get().probe);
+      return tokenCategoryList;
+    }
+
+    public Stage getStage(String name, Engine engine)
+    {
+      switch(name) {
+        case "preproc":
+          return new Stage(fullName -> fullName, input -> preprocPriv.apply(cast(input)));
+        case "chop":
+          return new Stage(fullName -> preprocPriv.apply(fullName),
+            input -> chopper.apply(cast(input), maxTokenCount, Workspace.get()));
+        case "translit":
+          return new Stage(fullName -> toUpperCase(getTokenList(fullName)),
+            input -> applyEach(translit, cast(input)));
+        case "categorize":
+          return new Stage(fullName -> getTokenList(fullName), input -> categorizeAll(cast(input)));
+        case "search":
+          return new Stage(fullName -> getCategoryList(fullName),
+            input -> tokenizerForestPriv.findBest(cast(input), maxSolutionCount));
+        case "nameTransform":
+          return new Stage(fullName -> getFormList(fullName),
+            input -> applyEach(nameTransformScheme, cast(input)));
+        case "namePhonetics":
+          return new Stage(fullName -> getFormList(fullName),
+            input -> applyEach(namePhonetics, cast(input)));
+        case "patronymPhonetics":
+          return new Stage(fullName -> getFormList(fullName),
+            input -> applyEach(patronymPhonetics, cast(input)));
+        case "pad":
+          return newPadStage(fullName -> assemble(fullName, Workspace.get()), 11, 9, 4);
+        case "final":
+          return new Stage(fullName -> assemble(fullName, Workspace.get()),
+            input -> finalPhonetics.apply(cast(input)));
+        default:
+          if(name.startsWith("phonetics.")) {
+            StringOperator phonetics = engine.getPhonetics(name.substring(10));
+            return new Stage(fullName -> getFormList(fullName),
+              input -> applyEach(phonetics, cast(input)));
+          }
+          return null;
+      }
+    }
+  }
+
+  // Organization pipeline
+
+  private static final class OrgPipeline
+  {
+    private final StringOperator preprocOrg;
+    private final TokenVocabChain tokenVocabOrg;
+    private final Finder orgAdjFinder;
+    private final TokenizerForest tokenizerForestOrg;
+    private final TransformScheme legalFormTransformScheme;
+    private final TransformScheme orgNameTransformScheme;
+    private final StringOperator namePhonetics;
+    private final StringOperator namePrePhonetics;
+    private final LevelPhonetics levelPhonetics;
+    private final StringOperator finalPhonetics;
+    private final String version;
+
+    public OrgPipeline(Engine engine)
+    {
+      preprocOrg = engine.getReplacerChain("IRBICON Organization Parse Pre-processing.rgx.txt");
+      tokenVocabOrg = new TokenVocabChain(Arrays.asList(
+        engine.getTokenVocab("IRBICON Organization.vcb.txt")
+      ));
+      orgAdjFinder = engine.getFinder("IRBICON Organization Adjective Word Categorization.rgx.txt");
+      tokenizerForestOrg = engine.getTokenizerForest("IRBICON Organization.forest.txt", 2);
+      legalFormTransformScheme = engine.getTransformScheme("IRBICON Organization Legal Form Standards.sch.txt");
+      orgNameTransformScheme = engine.getTransformScheme("IRBICON Organization Name Match Values.sch.txt");
+      namePhonetics = engine.getNamePhonetics();
+      namePrePhonetics = engine.getNamePrePhonetics();
+      levelPhonetics = engine.getLevelPhonetics();
+      finalPhonetics = engine.getFinalPhonetics();
+      version = engine.getVersion();
+    }
+
+    private void categorize(String token, String upperToken, List<TokenCategory> categoryList,
+                            Metrics.Probe probe)
+    {
+      TokenCategory[] categories = 
+        (orgCategoryCache != null ? orgCategoryCache.get(token, version) : null);
+      if(categories != null) {
+        for(TokenCategory category: categories)
+          categoryList.add(category);
+        probe.mark(Metrics.CATEGORIZE);
+        return;
+      }
+
+      tokenVocabOrg.find(upperToken, categoryList);
+
+      if(categoryList.isEmpty()) {
+        if(orgAdjFinder.find(token))
+          categoryList.add(adjectiveWordCategory);
+      }
+
+      if(isNumber(token))
+        categoryList.add(numberCategory);
+
+      if(categoryList.isEmpty())
+        categoryList.add(commonWordCategory);
+
+      if(orgCategoryCache != null)
+        orgCategoryCache.put(token, version, categoryList.toArray(new TokenCategory[0]));
+      probe.mark(Metrics.CATEGORIZE);
+    }
+
+    // Code is made of upper case form
+    private String getOrgWordCode(String orgNameWord)
+    {
+      String code = (orgWordCache != null ? orgWordCache.get(orgNameWord, version) : null);
+      if(code == null) {
+        code = orgNameTransformScheme.apply(orgNameWord);
+        code = namePhonetics.apply(code);
+        if(orgWordCache != null)
+          orgWordCache.put(orgNameWord, version, code);
+      }
+      return code;
+    }
+
+    private String fallback(String fullName)
+    {
+      StringBuilder code = Workspace.get().getCodeBuilder();
+      appendConcat(code, fullName);
+      pad(code, 0, 60);
+      if(metrics != null)
+        metrics.countFallback(Metrics.ORG);
+      return code.toString();
+    }
+
+    public String calc(String fullName)
+    {
+      if(fullName == null)
+        return null;
+    
+      if(isBlank(fullName))
+        return "";
+
+      Workspace workspace = Workspace.get();
+      String code = finalPhonetics.apply(assemble(fullName, workspace));
+      workspace.probe.mark(Metrics.FINAL);
+      return code;
+    }
+
+    // Codes of the levels of sensitivity, by a single parse
+    public String[] calc(String fullName, int[] levelList)
+    {
+      String[] codeList = new String[levelList.length];
+      if(fullName == null)
+        return codeList;
+
+      if(isBlank(fullName)) {
+        Arrays.fill(codeList, "");
+        return codeList;
+      }
+
+      Workspace workspace = Workspace.get();
+      assemble(fullName, workspace, levelList, codeList);
+      applyFinal(finalPhonetics, codeList);
+      workspace.probe.mark(Metrics.FINAL);
+      return codeList;
+    }
+
+    // Code before final phonetics
+    private String assemble(String fullName, Workspace workspace)
+    {
+      int tree = parse(fullName, workspace);
+      if(tree < 0)
+        return fallback(fullName);
+
+      String legalForm = getLegalForm(workspace, tree);
+      int orgNameStart = tokenizerForestOrg.getRangeStart(tree, 1);
+      int orgNameLength = tokenizerForestOrg.getRangeLength(tree, 1);
+
+      StringBuilder code = workspace.getCodeBuilder();
+      code.append(legalForm);
+      pad(code, 0, 4);
+      //Transform scheme and phonetics should be applied word by word
+      for(int i = orgNameStart; i < orgNameStart + orgNameLength && code.length() < 60; ++i)
+        code.append(getOrgWordCode(workspace.upperTokenList.get(i))).append('$');
+      workspace.probe.mark(Metrics.PHONETICS);
+      pad(code, 4, 56);
+      return code.toString();
+    }
+
+    // Codes before final phonetics by level. Token cache keeps codes of the
+    // default level only, so forms before post phonetics are made here, as
+    // far as the code takes words
+    private void assemble(String fullName, Workspace workspace, int[] levelList, String[] codeList)
+    {
+      int tree = parse(fullName, workspace);
+      if(tree < 0) {
+        Arrays.fill(codeList, fallback(fullName));
+        return;
+      }
+
+      String legalForm = getLegalForm(workspace, tree);
+      int orgNameStart = tokenizerForestOrg.getRangeStart(tree, 1);
+      int orgNameLength = tokenizerForestOrg.getRangeLength(tree, 1);
+
+      int levelMask = getLevelMask(levelList);
+      String[][] wordList = new String[orgNameLength][];
+      for(int i = 0; i < levelList.length; ++i) {
+        int level = levelList[i];
+        StringBuilder code = workspace.getCodeBuilder();
+        code.append(legalForm);
+        pad(code, 0, 4);
+        for(int j = 0; j < orgNameLength && code.length() < 60; ++j) {
+          if(wordList[j] == null)
+            wordList[j] = levelPhonetics.apply(namePrePhonetics.apply(
+              orgNameTransformScheme.apply(workspace.upperTokenList.get(orgNameStart + j))), levelMask);
+          code.append(wordList[j][level]).append('$');
+        }
+        pad(code, 4, 56);
+        codeList[i] = code.toString();
+      }
+      workspace.probe.mark(Metrics.PHONETICS);
+    }
+
+    private String getLegalForm(Workspace workspace, int tree)
+    {
+      int legalFormStart = tokenizerForestOrg.getRangeStart(tree, 0);
+      int legalFormLength = tokenizerForestOrg.getRangeLength(tree, 0);
+      if(legalFormLength == 0)
+        return "";
+
+      StringBuilder legalFormBuilder = workspace.getCodeBuilder();
+      for(int i = legalFormStart; i < legalFormStart + legalFormLength; ++i)
+        legalFormBuilder.append(workspace.upperTokenList.get(i));
+      return legalFormTransformScheme.apply(legalFormBuilder.toString());
+    }
+
+    // Best tree of the parse, or -1 if the name is to get fallback code.
+    // Upper case tokens are left in the workspace
+    private int parse(String fullName, Workspace workspace)
+    {
+      Metrics.Probe probe = workspace.probe;
+
+      String text = preprocOrg.apply(fullName);
+      probe.mark(Metrics.PREPROC);
+      List<String> tokenList = chopper.apply(text, maxTokenCount, workspace);
+      List<String> upperTokenList = workspace.upperTokenList;
+      probe.mark(Metrics.CHOP);
+      probe.count(Metrics.TOKEN_COUNT, tokenList.size());
+      if(!checkTokenCount(tokenList, tokenizerForestOrg))
+        return -1;
+
+      List<List<TokenCategory>> tokenCategoryList = 
+        workspace.getTokenCategoryList(tokenList.size());
+      for(int i = 0; i < tokenList.size(); ++i) {
+        String token = tokenList.get(i);
+        categorize(token, upperTokenList.get(i), tokenCategoryList.get(i), probe);
+      }
+
+      int tree = tokenizerForestOrg.findBest(tokenCategoryList, maxSolutionCount);
+      probe.mark(Metrics.SEARCH);
+      return tree;
+    }
+
+    private List<String> getTokenList(String fullName)
+    {
+      return chopper.apply(preprocOrg.apply(fullName), maxTokenCount, new ArrayList<String>());
+    }
+
+    private List<List<TokenCategory>> getCategoryList(String fullName)
+    {
+      List<List<TokenCategory>> categoryList = new ArrayList<>();
+      for(String token: getTokenList(fullName)) {
+        categoryList.add(new ArrayList<TokenCategory>());
+        categorize(token, token.toUpperCase(), categoryList.get(categoryList.size() - 1),
+                   Workspace.get().probe);
+      }
+      return categoryList;
+    }
+
+    private List<List<TokenCategory>> categorizeAll(List<String> tokenList)
+    {
+      List<List<TokenCategory>> tokenCategoryList = 
+        Workspace.get().getTokenCategoryList(tokenList.size());
+      for(int i = 0; i < tokenList.size(); ++i)
+        categorize(tokenList.get(i), tokenList.get(i).toUpperCase(), tokenCategoryList.get(i),
+                   Workspace.get().probe);
+      return tokenCategoryList;
+    }
+
+    public Stage getStage(String name, Engine engine)
+    {
+      switch(name) {
+        case "preproc":
+          return new Stage(fullName -> fullName, input -> preprocOrg.apply(cast(input)));
+        case "chop":
+          return new Stage(fullName -> preprocOrg.apply(fullName),
+            input -> chopper.apply(cast(input), maxTokenCount, Workspace.get()));
+        case "categorize":
+          return new Stage(fullName -> getTokenList(fullName), input -> categorizeAll(cast(input)));
+        case "search":
+          return new Stage(fullName -> getCategoryList(fullName),
+            input -> tokenizerForestOrg.findBest(cast(input), maxSolutionCount));
+        case "legalFormTransform":
+          return new Stage(fullName -> toUpperCase(getTokenList(fullName)),
+            input -> applyEach(legalFormTransformScheme, cast(input)));
+        case "orgNameTransform":
+          return new Stage(fullName -> toUpperCase(getTokenList(fullName)),
+            input -> applyEach(orgNameTransformScheme, cast(input)));
+        case "namePhonetics":
+          return new Stage(fullName -> toUpperCase(getTokenList(fullName)),
+            input -> applyEach(namePhonetics, cast(input)));
+        case "pad":
+          return newPadStage(fullName -> assemble(fullName, Workspace.get()), 4, 56);
+        case "final":
+          return new Stage(fullName -> assemble(fullName, Workspace.get()),
+            input -> finalPhonetics.apply(cast(input)));
+        default:
+          return null;
+      }
+    }
+  }
+
+  // Matchcoding engine over the knowledge base. Private person and
+  // organization pipelines are built on first use, independently of each
+  // other. Resources they have in common are loaded once
+
+  public static final class Engine
+  {
+    private final KnowledgeBase knowledgeBase;
+    // Resources by type and name, guarded by the engine
+    private final Map<String, Object> resourceMap;
+    private volatile PrivPipeline privPipeline;
+    private volatile OrgPipeline orgPipeline;
+
+    public Engine(KnowledgeBase knowledgeBase)
+    {
+      this.knowledgeBase = knowledgeBase;
+      resourceMap = new HashMap<>();
+    }
+
+    public KnowledgeBase getKnowledgeBase()
+    {
+      return knowledgeBase;
+    }
+
+    public String getVersion()
+    {
+      return knowledgeBase.getVersion();
+    }
+
+    private PrivPipeline getPrivPipeline()
+    {
+      PrivPipeline pipeline = privPipeline;
+      if(pipeline == null) {
+        synchronized(this) {
+          if(privPipeline == null)
+            privPipeline = new PrivPipeline(this);
+          pipeline = privPipeline;
+        }
+      }
+      return pipeline;
+    }
+
+    private OrgPipeline getOrgPipeline()
+    {
+      OrgPipeline pipeline = orgPipeline;
+      if(pipeline == null) {
+        synchronized(this) {
+          if(orgPipeline == null)
+            orgPipeline = new OrgPipeline(this);
+          pipeline = orgPipeline;
+        }
+      }
+      return pipeline;
+    }
+
+    // Skip and apply counts of the regex rules of resources loaded so far,
+    // keyed by <resource name>#<rule number>.skips and .applies. Rules of
+    // the preprocessing are skipped when they surely can't match
+    public synchronized Map<String, Long> getRuleCounts()
+    {
+      Map<String, Long> map = new TreeMap<>();
+      for(Object resource: resourceMap.values()) {
+        if(resource instanceof ReplacerChain)
+          ((ReplacerChain)resource).putRuleCounts(map);
+      }
+      return map;
+    }
+
+    // Builds both pipelines at once and checks that all the resources
+    // are loaded, so the engine is ready to work
+    public void load()
+      throws IOException
+    {
+      try {
+        getPrivPipeline();
+        getOrgPipeline();
+      }
+      catch(RuntimeException e) {
+        throw new IOException("knowledge base version " + getVersion() + ": " + e, e);
+      }
+      List<String> failedResourceList = knowledgeBase.getFailedResourceList();
+      if(!failedResourceList.isEmpty())
+        throw new IOException("knowledge base version " + getVersion() +
+                              ": failed to load " + failedResourceList);
+    }
+
+    public String calcPriv(String fullName)
+    {
+      if(metrics == null)
+        return doCalcPriv(fullName);
+
+      Metrics.Probe probe = metrics.begin(Metrics.PRIV);
+      if(probe == null)
+        return doCalcPriv(fullName);
+      try {
+        return doCalcPriv(fullName);
+      }
+      finally {
+        metrics.end(probe);
+      }
+    }
+
+    private String doCalcPriv(String fullName)
+    {
+      if(privResultCache == null || fullName == null)
+        return getPrivPipeline().calc(fullName);
+
+      String code = privResultCache.get(fullName, getVersion());
+      if(code == null) {
+        code = getPrivPipeline().calc(fullName);
+        privResultCache.put(fullName, getVersion(), code);
+      }
+      return code;
+    }
+
+    public String calcOrg(String fullName)
+    {
+      if(metrics == null)
+        return doCalcOrg(fullName);
+
+      Metrics.Probe probe = metrics.begin(Metrics.ORG);
+      if(probe == null)
+        return doCalcOrg(fullName);
+      try {
+        return doCalcOrg(fullName);
+      }
+      finally {
+        metrics.end(probe);
+      }
+    }
+
+    private String doCalcOrg(String fullName)
+    {
+      if(orgResultCache == null || fullName == null)
+        return getOrgPipeline().calc(fullName);
+
+      String code = orgResultCache.get(fullName, getVersion());
+      if(code == null) {
+        code = getOrgPipeline().calc(fullName);
+        orgResultCache.put(fullName, getVersion(), code);
+      }
+      return code;
+    }
+
+    // Codes of the name for each of the levels of sensitivity given, see
+    // getSensitivityList(). The name is parsed once, just post phonetics
+    // are run per level. Result cache serves the default level only, so it
+    // is not used here
+    public String[] calcPrivCodes(String fullName, int... sensitivityList)
+    {
+      int[] levelList = getLevelList(sensitivityList);
+      if(metrics == null)
+        return getPrivPipeline().calc(fullName, levelList);
+
+      Metrics.Probe probe = metrics.begin(Metrics.PRIV);
+      if(probe == null)
+        return getPrivPipeline().calc(fullName, levelList);
+      try {
+        return getPrivPipeline().calc(fullName, levelList);
+      }
+      finally {
+        metrics.end(probe);
+      }
+    }
+
+    public String[] calcOrgCodes(String fullName, int... sensitivityList)
+    {
+      int[] levelList = getLevelList(sensitivityList);
+      if(metrics == null)
+        return getOrgPipeline().calc(fullName, levelList);
+
+      Metrics.Probe probe = metrics.begin(Metrics.ORG);
+      if(probe == null)
+        return getOrgPipeline().calc(fullName, levelList);
+      try {
+        return getOrgPipeline().calc(fullName, levelList);
+      }
+      finally {
+        metrics.end(probe);
+      }
+    }
+
+    public String calcPriv(String fullName, int sensitivity)
+    {
+      return (sensitivity == DEFAULT_SENSITIVITY ? calcPriv(fullName) :
+              calcPrivCodes(fullName, sensitivity)[0]);
+    }
+
+    public String calcOrg(String fullName, int sensitivity)
+    {
+      return (sensitivity == DEFAULT_SENSITIVITY ? calcOrg(fullName) :
+              calcOrgCodes(fullName, sensitivity)[0]);
+    }
+
+    // Codes of the names in their order, matchcoded in background by the
+    // default async executor, see AsyncBatch
+    public CompletableFuture<String[]> calcPrivAsync(List<String> nameList)
+    {
+      return calcPrivAsync(nameList, DEFAULT_SENSITIVITY, getAsyncExecutor(), 0);
+    }
+
+    public CompletableFuture<String[]> calcOrgAsync(List<String> nameList)
+    {
+      return calcOrgAsync(nameList, DEFAULT_SENSITIVITY, getAsyncExecutor(), 0);
+    }
+
+    // Timeout of 0 means no deadline
+    public CompletableFuture<String[]> calcPrivAsync(List<String> nameList, int sensitivity,
+                                                     Executor executor, long timeoutMillis)
+    {
+      getLevelList(new int[] { sensitivity });
+      return new AsyncBatch(this, false, sensitivity, nameList).start(executor, timeoutMillis);
+    }
+
+    public CompletableFuture<String[]> calcOrgAsync(List<String> nameList, int sensitivity,
+                                                    Executor executor, long timeoutMillis)
+    {
+      getLevelList(new int[] { sensitivity });
+      return new AsyncBatch(this, true, sensitivity, nameList).start(executor, timeoutMillis);
+    }
+
+    // Called by pipelines being built, so under the engine lock
+    private <T> T getResource(Class<T> type, String name, Supplier<T> loader)
+    {
+      String key = type.getName() + "\t" + name;
+      Object resource = resourceMap.get(key);
+      if(resource == null) {
+        resource = loader.get();
+        resourceMap.put(key, resource);
+      }
+      return type.cast(resource);
+    }
+
+    private ReplacerChain getReplacerChain(String resourceName)
+    {
+      return getResource(ReplacerChain.class, resourceName,
+        () -> new ReplacerChain(knowledgeBase, resourceName));
+    }
+
+    private Transliterator getTransliterator(String resourceName)
+    {
+      return getResource(Transliterator.class, resourceName,
+        () -> new Transliterator(knowledgeBase, resourceName));
+    }
+
+    private Phonetics getPhonetics(String resourceName)
+    {
+      return getResource(Phonetics.class, resourceName,
+        () -> new Phonetics(knowledgeBase, resourceName));
+    }
+
+    private Finder getFinder(String resourceName)
+    {
+      return getResource(Finder.class, resourceName,
+        () -> new Finder(knowledgeBase, resourceName));
+    }
+
+    private TokenVocab getTokenVocab(String resourceName)
+    {
+      return getResource(TokenVocab.class, resourceName,
+        () -> new TokenVocab(knowledgeBase, resourceName));
+    }
+
+    private TokenizerForest getTokenizerForest(String resourceName, int rangeCount)
+    {
+      return getResource(TokenizerForest.class, resourceName,
+        () -> new TokenizerForest(knowledgeBase, resourceName, rangeCount));
+    }
+
+    private TransformScheme getTransformScheme(String resourceName)
+    {
+      return getResource(TransformScheme.class, resourceName,
+        () -> new TransformScheme(knowledgeBase, resourceName));
+    }
+
+    // Post phonetics of the default level of sensitivity
+    private StringOperator getPostPhonetics()
+    {
+      return getPhonetics("IRBICON Vowel Transformation and Removal.phx.txt");
+    }
+
+    // Reductions of the levels are in order of SENSITIVITY_LIST
+    private LevelPhonetics getLevelPhonetics()
+    {
+      return new LevelPhonetics(
+        new StringOperator[] {
+          null,
+          getPhonetics("IRBICON Fricative Consonant Reduction.phx.txt"),
+          getPhonetics("IRBICON Fricative Consonant Advanced Reduction.phx.txt")
+        },
+        getPostPhonetics());
+    }
+
+    // Phonetics before the post ones, the same for all the levels
+    private StringOperator getNamePrePhonetics()
+    {
+      return getPhonetics("IRBICON Double Letter Removal.phx.txt");
+    }
+
+    private StringOperator getPatronymPrePhonetics()
+    {
+      return new StringOperatorChain(Arrays.asList(
+        getPhonetics("IRBICON Double Letter Removal.phx.txt"),
+        getPhonetics("IRBICON Patronymic Suffix Removal.phx.txt")
+      ));
+    }
 
-      logger.info(resourceName + ": loaded " + entryMap.size() + " entries");
+    // Phonetics of the default level
+    private StringOperator getNamePhonetics()
+    {
+      return new StringOperatorChain(Arrays.asList(
+        getNamePrePhonetics(),
+        getPostPhonetics()
+      ));
     }
 
-    public List<TokenCategory> find(String token)
+    private StringOperator getPatronymPhonetics()
     {
-      return Collections.unmodifiableList(entryMap.getOrDefault(token, defaultEntry));
+      return new StringOperatorChain(Arrays.asList(
+        getPatronymPrePhonetics(),
+        getPostPhonetics()
+      ));
+    }
+
+    private StringOperator getFinalPhonetics()
+    {
+      return getPhonetics("MatchCode Final Replace.phx.txt");
     }
   }
 
-  private static class TokenVocabChain
+  // Matchcode along with version of the knowledge base which produced it
+
+  public static final class Matchcode
   {
-    private List<TokenVocab> vocabList;
+    private String code;
+    private String version;
 
-    public TokenVocabChain(List<TokenVocab> vocabList)
+    public Matchcode(String code, String version)
     {
-      this.vocabList = vocabList;
+      this.code = code;
+      this.version = version;
     }
 
-    public List<TokenCategory> find(String token)
+    public String getCode()
     {
-      List<TokenCategory> list = new ArrayList<>();
-      for(TokenVocab vocab: vocabList)
-        list.addAll(vocab.find(token));
-      return list;
+      return code;
     }
-  }
 
-  private static final TokenVocabChain tokenVocabPriv =
-    new TokenVocabChain(Arrays.asList(
-      new TokenVocab("IRBICON Name.vcb.txt"),
-      new TokenVocab("IRBICON Organization.vcb.txt")
-    ));
-
-  private static final TokenVocabChain tokenVocabOrg =
-    new TokenVocabChain(Arrays.asList(
-      new TokenVocab("IRBICON Organization.vcb.txt")
-    ));
+    public String getVersion()
+    {
+      return version;
+    }
+  }
 
+  // Immutable index of record ids by matchcode, kept in the file which is
+  // memory mapped, so lookups don't need the index in heap. The file holds
+  // magic, format version, org flag and version of the knowledge base which
+  // produced the codes, then blocks of up to 64 matchcodes in ascending
+  // order, then the directory of block offsets and the footer of counts.
+  // Codes of the block are front coded against the previous one, each
+  // followed by its posting list: ids front coded the same way, in order
+  // they were added. Lookup finds the block by binary search over first
+  // codes of blocks and scans just that block.
   //
+  // Records of blank names have the empty matchcode. They are kept in the
+  // index, so the delta can remove records from the base, but never found.
+  // Merge applies them, so the merged index has none
 
-  public static final class Range
+  public static final class Index
   {
-    private int start;
-    private int length;
+    private static final int MAGIC = 0x4d434958; // "MCIX"
+    private static final int FORMAT_VERSION = 1;
+    private static final int BLOCK_CODE_COUNT = 64;
+    private static final int FOOTER_SIZE = 32;
+
+    private final Path path;
+    private final ByteBuffer buffer;
+    private final boolean org;
+    private final String version;
+    private final long codeCount;
+    private final long idCount;
+    private final int blockCount;
+    private final int directoryOffset;
+
+    private Index(Path path, ByteBuffer buffer)
+      throws IOException
+    {
+      this.path = path;
+      this.buffer = buffer;
+      try {
+        if(buffer.getInt() != MAGIC)
+          throw new IOException(path + ": not a matchcode index");
+        int formatVersion = buffer.getInt();
+        if(formatVersion != FORMAT_VERSION)
+          throw new IOException(path + ": unsupported format version " + formatVersion);
+        org = (buffer.get() != 0);
+        version = KnowledgeBaseArtifact.readString(buffer);
+
+        buffer.position(buffer.limit() - FOOTER_SIZE);
+        codeCount = buffer.getLong();
+        idCount = buffer.getLong();
+        blockCount = buffer.getInt();
+        long offset = buffer.getLong();
+        if(buffer.getInt() != MAGIC || offset + blockCount * 8L != buffer.limit() - FOOTER_SIZE)
+          throw new IOException(path + ": truncated index");
+        directoryOffset = (int)offset;
+      }
+      catch(BufferUnderflowException | IllegalArgumentException e) {
+        throw new IOException(path + ": truncated index");
+      }
+    }
 
-    public Range(int start, int length)
+    public static Index open(Path path)
+      throws IOException
     {
-      this.start = start;
-      this.length = length;
+      // Mapping stays valid after the channel is closed
+      try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        if(channel.size() > Integer.MAX_VALUE)
+          throw new IOException(path + ": index of over 2 GB can't be mapped");
+        return new Index(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
     }
 
-    public int getStart()
+    public boolean isOrg()
     {
-      return start;
+      return org;
     }
 
-    public int getLength()
+    // Version of the knowledge base which produced the codes. Codes of
+    // other versions may differ, so the index is to be rebuilt on reload
+    public String getVersion()
     {
-      return length;
+      return version;
     }
-  }
 
-  public static final class TokenizerTree
-  {
-    private int weight;
-    private int order;
-    private List<Range> rangeList;
+    public long getCodeCount()
+    {
+      return codeCount;
+    }
 
-    public TokenizerTree(int weight, int order, List<Range> rangeList)
+    public long getIdCount()
     {
-      this.weight = weight;
-      this.order = order;
-      this.rangeList = rangeList;
+      return idCount;
     }
 
-    public int getWeight()
+    // Ids of the records which share the matchcode of the name, by the
+    // default engine
+    public List<String> findByName(String name)
     {
-      return weight;
+      return findByName(getDefaultEngine(), name);
     }
 
-    public int getOrder()
+    public List<String> findByName(Engine engine, String name)
     {
-      return order;
+      return findByCode(org ? engine.calcOrg(name) : engine.calcPriv(name));
     }
 
-    public List<Range> getRangeList()
+    public List<String> findByCode(String code)
     {
-      return Collections.unmodifiableList(rangeList);
+      if(code == null || code.isEmpty() || blockCount == 0)
+        return Collections.emptyList();
+
+      ByteBuffer data = buffer.duplicate();
+      // Last block of the first code not greater than the one looked for
+      int low = 0;
+      int high = blockCount - 1;
+      while(low < high) {
+        int middle = (low + high + 1) >>> 1;
+        if(getFirstCode(data, middle).compareTo(code) <= 0)
+          low = middle;
+        else
+          high = middle - 1;
+      }
+
+      byte[] codeBytes = code.getBytes(StandardCharsets.UTF_8);
+      Cursor cursor = new Cursor(data, low, low + 1);
+      while(cursor.next()) {
+        if(Arrays.equals(cursor.codeBytes, codeBytes))
+          return cursor.getIdList();
+      }
+      return Collections.emptyList();
     }
-  }
 
-  public static final class TokenizerForest
-  {
-    private HashMap<String, TokenizerTree> treeMap;
+    private int getBlockOffset(ByteBuffer data, int blockIndex)
+    {
+      return (int)data.getLong(directoryOffset + blockIndex * 8);
+    }
 
-    public TokenizerForest(String resourceName, int rangeCount)
+    private String getFirstCode(ByteBuffer data, int blockIndex)
     {
-      treeMap = new HashMap<String, TokenizerTree>();
+      data.position(getBlockOffset(data, blockIndex));
+      readVarInt(data);
+      readVarInt(data);
+      byte[] bytes = new byte[readVarInt(data)];
+      data.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
 
-      boolean isLoaded = ResourceLoader.load(resourceName, line ->
+    // Walks codes of the range of blocks in order
+    private final class Cursor
+    {
+      private final ByteBuffer data;
+      private int blockIndex;
+      private final int endBlockIndex;
+      private int blockCodesLeft = 0;
+      private byte[] codeBytes = new byte[0];
+      private int idCount;
+      private int postingEnd;
+
+      public Cursor(ByteBuffer data, int blockIndex, int endBlockIndex)
       {
-        String[] parts = line.split("\t");
-        if(parts.length != 4)
-          return true;
-
-        int weight;
-        try {
-          weight = Integer.parseInt(parts[1]);
-        }
-        catch(NumberFormatException e) {
-          return true;
-        }
-        if(weight < 0)
-          return true;
-  
-        int order;
-        try {
-          order = Integer.parseInt(parts[2]);
-        }
-        catch(NumberFormatException e) {
-          return true;
-        }
-        if(order < 0)
-          return true;
-  
-        String[] rangeParts = parts[3].split(",");
-        if(rangeParts.length != rangeCount * 2)
-          return true;
+        this.data = data;
+        this.blockIndex = blockIndex;
+        this.endBlockIndex = endBlockIndex;
+      }
 
-        ArrayList<Range> rangeList = new ArrayList<>();
-        try {
-          for(int i = 0; i < rangeCount; ++i) {
-            rangeList.add(new Range(Integer.parseInt(rangeParts[i * 2]),
-                                    Integer.parseInt(rangeParts[i * 2 + 1])));
-          }
-        }
-        catch(NumberFormatException e) {
-          return true;
+      public boolean next()
+      {
+        if(blockCodesLeft == 0) {
+          if(blockIndex == endBlockIndex)
+            return false;
+          data.position(getBlockOffset(data, blockIndex++));
+          blockCodesLeft = readVarInt(data);
+          codeBytes = new byte[0];
         }
-
-        treeMap.put(parts[0], new TokenizerTree(weight, order, rangeList));
+        else
+          data.position(postingEnd);
+        --blockCodesLeft;
+        codeBytes = readFrontCoded(data, codeBytes);
+        idCount = readVarInt(data);
+        int postingLength = readVarInt(data);
+        postingEnd = data.position() + postingLength;
         return true;
-      });
+      }
 
-      if(!isLoaded) {
-        treeMap.clear();
-        return;
+      public String getCode()
+      {
+        return new String(codeBytes, StandardCharsets.UTF_8);
       }
 
-      logger.info(resourceName + ": loaded " + treeMap.size() + " entries");
+      public List<String> getIdList()
+      {
+        List<String> idList = new ArrayList<>(idCount);
+        byte[] idBytes = new byte[0];
+        for(int i = 0; i < idCount; ++i) {
+          idBytes = readFrontCoded(data, idBytes);
+          idList.add(new String(idBytes, StandardCharsets.UTF_8));
+        }
+        return idList;
+      }
     }
 
-    public TokenizerTree find(String key)
+    private Cursor getCursor()
     {
-      return treeMap.get(key);
+      return new Cursor(buffer.duplicate(), 0, blockCount);
     }
-  }
 
-  private static final TokenizerForest tokenizerForestPriv =
-    new TokenizerForest("IRBICON Name.forest.txt", 3);
+    // Merges the delta index into the base one, giving the new index in the
+    // file. Records of the delta replace records of the same id in the base
+    // whatever code they have, records of blank names in the delta remove
+    // them. Ids of the delta are taken into memory, so it's to be small
+    public static void merge(Index base, Index delta, Path path)
+      throws IOException
+    {
+      if(base.org != delta.org)
+        throw new IOException(delta.path + ": org flag differs from one of the base index");
+      if(!base.version.equals(delta.version))
+        throw new IOException(delta.path + ": knowledge base version " + delta.version +
+                              " differs from base index version " + base.version);
+
+      Set<String> deltaIdSet = new HashSet<>();
+      for(Cursor cursor = delta.getCursor(); cursor.next();)
+        deltaIdSet.addAll(cursor.getIdList());
+
+      try(Writer out = new Writer(path, base.org, base.version)) {
+        Cursor baseCursor = base.getCursor();
+        Cursor deltaCursor = delta.getCursor();
+        boolean isBaseLeft = baseCursor.next();
+        boolean isDeltaLeft = deltaCursor.next();
+        while(isBaseLeft || isDeltaLeft) {
+          String baseCode = (isBaseLeft ? baseCursor.getCode() : null);
+          String deltaCode = (isDeltaLeft ? deltaCursor.getCode() : null);
+          int order = (!isBaseLeft ? 1 : !isDeltaLeft ? -1 : baseCode.compareTo(deltaCode));
+
+          List<String> idList = new ArrayList<>();
+          if(order <= 0) {
+            for(String id: baseCursor.getIdList()) {
+              if(!deltaIdSet.contains(id))
+                idList.add(id);
+            }
+            isBaseLeft = baseCursor.next();
+          }
+          if(order >= 0) {
+            idList.addAll(deltaCursor.getIdList());
+            isDeltaLeft = deltaCursor.next();
+          }
+          // Removals are done, so they are not carried into the next merge
+          String code = (order <= 0 ? baseCode : deltaCode);
+          if(!code.isEmpty())
+            out.add(code, idList);
+        }
+      }
+    }
 
-  private static final TokenizerForest tokenizerForestOrg =
-    new TokenizerForest("IRBICON Organization.forest.txt", 2);
+    // Writes the index file. Codes are to be added in ascending order, each
+    // one once
+    public static final class Writer
+      implements AutoCloseable
+    {
+      private final DataOutputStream out;
+      private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+      private final ByteArrayOutputStream posting = new ByteArrayOutputStream();
+      private long[] blockOffsetList = new long[1024];
+      private int blockCount = 0;
+      private int blockCodeCount = 0;
+      private String lastCode = null;
+      private byte[] lastCodeBytes = new byte[0];
+      private long codeCount = 0;
+      private long idCount = 0;
+
+      public Writer(Path path, boolean org, String version)
+        throws IOException
+      {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeByte(org ? 1 : 0);
+        KnowledgeBaseArtifact.writeString(out, version);
+      }
 
-  //
+      // Code with no ids is not written
+      public void add(String code, List<String> idList)
+        throws IOException
+      {
+        if(lastCode != null && code.compareTo(lastCode) <= 0)
+          throw new IllegalArgumentException("code " + code + " is not after " + lastCode);
+        if(idList.isEmpty())
+          return;
+
+        byte[] codeBytes = code.getBytes(StandardCharsets.UTF_8);
+        writeFrontCoded(block, blockCodeCount == 0 ? new byte[0] : lastCodeBytes, codeBytes);
+        lastCode = code;
+        lastCodeBytes = codeBytes;
+
+        posting.reset();
+        byte[] idBytes = new byte[0];
+        for(String id: idList) {
+          byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+          writeFrontCoded(posting, idBytes, bytes);
+          idBytes = bytes;
+        }
+        writeVarInt(block, idList.size());
+        writeVarInt(block, posting.size());
+        posting.writeTo(block);
+
+        ++codeCount;
+        idCount += idList.size();
+        if(++blockCodeCount == BLOCK_CODE_COUNT)
+          writeBlock();
+      }
 
-  private static final class TransformScheme
-    implements StringOperator
-  {
-    private Map<String, String> schemeMap;
+      private void writeBlock()
+        throws IOException
+      {
+        if(blockCodeCount == 0)
+          return;
+        if(blockCount == blockOffsetList.length)
+          blockOffsetList = Arrays.copyOf(blockOffsetList, blockCount * 2);
+        blockOffsetList[blockCount++] = out.size();
+
+        ByteArrayOutputStream count = new ByteArrayOutputStream();
+        writeVarInt(count, blockCodeCount);
+        count.writeTo(out);
+        block.writeTo(out);
+        block.reset();
+        blockCodeCount = 0;
+        if(out.size() == Integer.MAX_VALUE)
+          throw new IOException("index of over 2 GB can't be mapped");
+      }
 
-    public TransformScheme(String resourceName)
-    {
-      schemeMap = new HashMap<String, String>();
+      @Override
+      public void close()
+        throws IOException
+      {
+        try {
+          writeBlock();
+          long directoryOffset = out.size();
+          for(int i = 0; i < blockCount; ++i)
+            out.writeLong(blockOffsetList[i]);
+          out.writeLong(codeCount);
+          out.writeLong(idCount);
+          out.writeInt(blockCount);
+          out.writeLong(directoryOffset);
+          out.writeInt(MAGIC);
+          if(out.size() == Integer.MAX_VALUE)
+            throw new IOException("index of over 2 GB can't be mapped");
+        }
+        finally {
+          out.close();
+        }
+      }
 
-      boolean isLoaded = ResourceLoader.load(resourceName, line ->
+      public long getCodeCount()
       {
-        String[] parts = line.split("\t");
-        if(parts.length == 2)
-          schemeMap.put(parts[0], parts[1]);
-        return true;
-      });
+        return codeCount;
+      }
 
-      if(!isLoaded) {
-        schemeMap.clear();
-        return;
+      public long getIdCount()
+      {
+        return idCount;
       }
+    }
 
-      logger.info(resourceName + ": loaded " + schemeMap.size() + " entries");
+    // Length of the prefix shared with the previous value, then length
+    // and bytes of the rest
+    private static void writeFrontCoded(ByteArrayOutputStream out, byte[] previous, byte[] bytes)
+    {
+      int shared = 0;
+      int maxShared = Math.min(previous.length, bytes.length);
+      while(shared < maxShared && previous[shared] == bytes[shared])
+        ++shared;
+      writeVarInt(out, shared);
+      writeVarInt(out, bytes.length - shared);
+      out.write(bytes, shared, bytes.length - shared);
     }
 
-    @Override
-    public String apply(String string)
+    private static byte[] readFrontCoded(ByteBuffer data, byte[] previous)
     {
-      String found = schemeMap.get(string);
-      return (found != null ? found : string);
+      int shared = readVarInt(data);
+      byte[] bytes = Arrays.copyOf(previous, shared + readVarInt(data));
+      data.get(bytes, shared, bytes.length - shared);
+      return bytes;
     }
-  }
 
-  private static final TransformScheme nameTransformScheme =
-    new TransformScheme("IRBICON Given Name Match Values.sch.txt");
+    private static void writeVarInt(ByteArrayOutputStream out, int value)
+    {
+      while((value & ~0x7f) != 0) {
+        out.write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
 
-  private static final TransformScheme legalFormTransformScheme =
-    new TransformScheme("IRBICON Organization Legal Form Standards.sch.txt");
+    private static int readVarInt(ByteBuffer data)
+    {
+      int value = 0;
+      for(int shift = 0;; shift += 7) {
+        byte b = data.get();
+        value |= (b & 0x7f) << shift;
+        if(b >= 0)
+          return value;
+      }
+    }
+  }
 
-  private static final TransformScheme orgNameTransformScheme =
-    new TransformScheme("IRBICON Organization Name Match Values.sch.txt");
+  // Default engine is swapped as a whole on reload. Each call takes it
+  // once, so the call in progress finishes on the version it started with
 
-  //
+  private static volatile Engine defaultEngine = new Engine(KnowledgeBase.getDefault());
 
-  public static String calcPriv(String fullName)
+  // Engine over the default knowledge base, see KnowledgeBase.getDefault()
+  public static Engine getDefaultEngine()
   {
-    if(fullName == null)
-      return null;
-    
-    String fullNameConcat = fullName.replaceAll("[ \\u00a0]", "");
-    if(fullNameConcat.isEmpty())
-      return "";
-
-    List<String> tokenList = chopper.apply(preprocPriv.apply(fullName));
-
-    ArrayList<TokenCategory> solutionList = new ArrayList<>();
-    solutionList.add(new TokenCategory(0, ""));
+    return defaultEngine;
+  }
 
-    for(String token: tokenList) {
-      List<TokenCategory> categoryList = 
-        tokenVocabPriv.find(translit.apply(token.toUpperCase()));
+  public static String getKnowledgeBaseVersion()
+  {
+    return defaultEngine.getVersion();
+  }
 
-      if(categoryList.isEmpty()) {
-        if(familyFinder.find(token))
-          categoryList.add(new TokenCategory(70, "FW"));
-        if(patronymFinder.find(token))
-          categoryList.add(new TokenCategory(70, "PW"));
-      }
+  // Loads and checks the knowledge base fully, then makes it the default
+  // one. The current one keeps working meanwhile and stays in place if
+  // the new one fails to load
+  public static Engine reload(KnowledgeBase knowledgeBase)
+    throws IOException
+  {
+    Engine engine = new Engine(knowledgeBase);
+    engine.load();
+    defaultEngine = engine;
+    logger.info("switched to knowledge base version " + engine.getVersion());
+    return engine;
+  }
 
-      if(token.replaceAll("[0-9]", "").isEmpty())
-        categoryList.add(new TokenCategory(50, "NUM"));
+  // Same as above for the artifact file or the data folder, gives version
+  public static String reload(String path)
+    throws IOException
+  {
+    Path kbPath = Paths.get(path);
+    KnowledgeBase knowledgeBase = (Files.isDirectory(kbPath) ?
+      KnowledgeBase.fromFolders(Collections.singletonList(kbPath)) :
+      KnowledgeBase.fromArtifact(kbPath));
+    return reload(knowledgeBase).getVersion();
+  }
 
-      if(categoryList.isEmpty()) {
-        categoryList.add(new TokenCategory(30, "FW"));
-        categoryList.add(new TokenCategory(30, "NW"));
-      }
-
-      /* DEBUG (add a slash at the start of this line to open code):
-      // Print categories per token:
-      System.out.println(token);
-      for(TokenCategory cat: categoryList)
-      System.out.println("  " + cat.getWeight() + " " + cat.getCode());
-      //*/
-
-      ArrayList<TokenCategory> newSolutionList = new ArrayList<>();
-      for(TokenCategory solution: solutionList)
-        for(TokenCategory category: categoryList)
-          newSolutionList.add(new TokenCategory(solution.getWeight() + category.getWeight() * 10,
-                                                solution.getCode() + " " + category.getCode()));
-      solutionList = newSolutionList;
-    }
-
-    /* DEBUG (add a slash at the start of this line to open code):
-    // Print solutions:
-    System.out.println("solutions:");
-    for(TokenCategory cat: solutionList)
-      System.out.println("  " + cat.getWeight() + " " + cat.getCode());
-    //*/
-
-    TokenizerTree tree = null;
-    int weight = 0;
-    for(TokenCategory s: solutionList) {
-      TokenizerTree t = tokenizerForestPriv.find(s.getCode().substring(1));
-      if(t != null) {
-        int w = s.getWeight() + t.getWeight();
-        if(tree == null || w > weight || 
-            (w == weight && t.getOrder() > tree.getOrder()))
-        {
-          tree = t;
-          weight = w;
-        }
-      }
-    }
+  public static String calcPriv(String fullName)
+  {
+    return defaultEngine.calcPriv(fullName);
+  }
 
-    if(tree == null)
-      return finalPhonetics.apply(
-        (fullNameConcat + "$$$$$$$$$$$$$$$$$$$$$$$$").substring(0, 24)
-      );
+  public static String calcOrg(String fullName)
+  {
+    return defaultEngine.calcOrg(fullName);
+  }
 
-    List<Range> rangeList = tree.getRangeList();
-    Range familyRange = rangeList.get(0);
-    Range nameRange = rangeList.get(1);
-    Range patronymRange = rangeList.get(2);
+  public static String calcPriv(String fullName, int sensitivity)
+  {
+    return defaultEngine.calcPriv(fullName, sensitivity);
+  }
 
-    String family = "";
-    if(familyRange.getLength() > 0) {
-      family = tokenList.get(
-          familyRange.getStart() + familyRange.getLength() - 1
-        );
-      family = family.toUpperCase();
-      family = translit.apply(family);
-      family = namePhonetics.apply(family);
-    }
+  public static String calcOrg(String fullName, int sensitivity)
+  {
+    return defaultEngine.calcOrg(fullName, sensitivity);
+  }
 
-    String name = "";
-    if(nameRange.getLength() > 0) {
-      name = tokenList.get(nameRange.getStart());
-      name = name.toUpperCase();
-      name = translit.apply(name);
-      name = nameTransformScheme.apply(name);
-      name = namePhonetics.apply(name);
-    }
+  // Codes of the name for each of the levels of sensitivity, by a single
+  // parse, see Engine.calcPrivCodes()
+  public static String[] calcPrivCodes(String fullName, int... sensitivityList)
+  {
+    return defaultEngine.calcPrivCodes(fullName, sensitivityList);
+  }
 
-    String patronym = "";
-    if(patronymRange.getLength() > 0) {
-      patronym = String.join("", tokenList.subList(
-            patronymRange.getStart(),
-            patronymRange.getStart() + patronymRange.getLength())
-        );
-      patronym = patronym.toUpperCase();
-      patronym = translit.apply(patronym);
-      //FIXME: Is bug here? Whether the phonetics should be applied word by word?
-      patronym = patronymPhonetics.apply(patronym);
-    }
+  public static String[] calcOrgCodes(String fullName, int... sensitivityList)
+  {
+    return defaultEngine.calcOrgCodes(fullName, sensitivityList);
+  }
 
-    return finalPhonetics.apply(
-      (family   + "$$$$$$$$$$$").substring(0, 11) +
-      (name     + "$$$$$$$$$"  ).substring(0, 9) +
-      (patronym + "$$$$"       ).substring(0, 4)
-    );
+  public static Matchcode calcPrivVersioned(String fullName)
+  {
+    Engine engine = defaultEngine;
+    return new Matchcode(engine.calcPriv(fullName), engine.getVersion());
   }
 
-  public static String calcOrg(String fullName)
+  public static Matchcode calcOrgVersioned(String fullName)
   {
-    if(fullName == null)
-      return null;
-    
-    String fullNameConcat = fullName.replaceAll("[ \\u00a0]", "");
-    if(fullNameConcat.isEmpty())
-      return "";
+    Engine engine = defaultEngine;
+    return new Matchcode(engine.calcOrg(fullName), engine.getVersion());
+  }
 
-    List<String> tokenList = chopper.apply(preprocOrg.apply(fullName));
+  // Asynchronous batches. Names are split into chunks, which are taken in
+  // turn by at most as many tasks as the cores are, however many threads
+  // the executor has, so the batch never oversubscribes the cores. Chunk is
+  // small enough for the tasks to end at about the same time, and big
+  // enough for token caches and scratch space of the thread to stay hot
+  // from name to name. The whole batch is matchcoded by the same engine.
+  //
+  // Cancelling the future, or its deadline passed, stops the batch after
+  // chunks in progress. Deadline fails the future with TimeoutException,
+  // exception or error of any name fails it with that one
 
-    ArrayList<TokenCategory> solutionList = new ArrayList<>();
-    solutionList.add(new TokenCategory(0, ""));
+  private static final int ASYNC_CHUNK_SIZE = 256;
 
-    for(String token: tokenList) {
-      List<TokenCategory> categoryList = 
-        tokenVocabOrg.find(token.toUpperCase());
+  private static final class AsyncBatch
+  {
+    private final Engine engine;
+    private final boolean org;
+    private final int sensitivity;
+    private final List<String> nameList;
+    private final String[] codeList;
+    private final int chunkCount;
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    private final AtomicInteger doneChunkCount = new AtomicInteger();
+    private final CompletableFuture<String[]> result = new CompletableFuture<>();
+
+    public AsyncBatch(Engine engine, boolean org, int sensitivity, List<String> nameList)
+    {
+      this.engine = engine;
+      this.org = org;
+      this.sensitivity = sensitivity;
+      this.nameList = nameList;
+      codeList = new String[nameList.size()];
+      chunkCount = (codeList.length + ASYNC_CHUNK_SIZE - 1) / ASYNC_CHUNK_SIZE;
+    }
 
-      if(categoryList.isEmpty()) {
-        if(orgAdjFinder.find(token))
-          categoryList.add(new TokenCategory(50, "AW"));
+    public CompletableFuture<String[]> start(Executor executor, long timeoutMillis)
+    {
+      if(chunkCount == 0) {
+        result.complete(codeList);
+        return result;
       }
 
-      if(token.replaceAll("[0-9]", "").isEmpty())
-        categoryList.add(new TokenCategory(50, "NUM"));
+      if(timeoutMillis > 0) {
+        ScheduledFuture<?> timeout = getAsyncScheduler().schedule(
+          () -> result.completeExceptionally(
+                  new TimeoutException("batch not done in " + timeoutMillis + " ms")),
+          timeoutMillis, TimeUnit.MILLISECONDS);
+        result.whenComplete((codes, e) -> timeout.cancel(false));
+      }
 
-      if(categoryList.isEmpty())
-        categoryList.add(new TokenCategory(50, "CNW"));
-
-      ArrayList<TokenCategory> newSolutionList = new ArrayList<>();
-      for(TokenCategory solution: solutionList)
-        for(TokenCategory category: categoryList)
-          newSolutionList.add(new TokenCategory(solution.getWeight() + category.getWeight() * 10,
-                                                solution.getCode() + " " + category.getCode()));
-      solutionList = newSolutionList;
-    }
-
-    TokenizerTree tree = null;
-    int weight = 0;
-    for(TokenCategory s: solutionList) {
-      TokenizerTree t = tokenizerForestOrg.find(s.getCode().substring(1));
-      if(t != null) {
-        int w = s.getWeight() + t.getWeight();
-        if(tree == null || w > weight || 
-            (w == weight && t.getOrder() > tree.getOrder()))
-        {
-          tree = t;
-          weight = w;
-        }
+      int taskCount = Math.min(chunkCount, Runtime.getRuntime().availableProcessors());
+      try {
+        for(int i = 0; i < taskCount; ++i)
+          executor.execute(this::run);
+      }
+      catch(RejectedExecutionException e) {
+        result.completeExceptionally(e);
       }
+      return result;
     }
 
-    if(tree == null)
-      return finalPhonetics.apply(
-        (fullNameConcat + "$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$").substring(0, 60)
-      );
+    private void run()
+    {
+      int chunk;
+      while(!result.isDone() && (chunk = nextChunk.getAndIncrement()) < chunkCount) {
+        int end = Math.min((chunk + 1) * ASYNC_CHUNK_SIZE, codeList.length);
+        try {
+          for(int i = chunk * ASYNC_CHUNK_SIZE; i < end; ++i) {
+            String name = nameList.get(i);
+            codeList[i] = (org ? engine.calcOrg(name, sensitivity) : engine.calcPriv(name, sensitivity));
+          }
+        }
+        catch(Throwable e) {
+          // Error of any kind fails the batch, so the future never hangs.
+          // Ones the JVM can't go on after are thrown on
+          result.completeExceptionally(e);
+          if(e instanceof VirtualMachineError)
+            throw (VirtualMachineError)e;
+          return;
+        }
+        if(doneChunkCount.incrementAndGet() == chunkCount)
+          result.complete(codeList);
+      }
+    }
+  }
 
-    List<Range> rangeList = tree.getRangeList();
-    Range legalFormRange = rangeList.get(0);
-    Range orgNameRange = rangeList.get(1);
+  private static volatile ExecutorService asyncExecutor;
+  private static volatile ScheduledExecutorService asyncScheduler;
 
-    String legalForm = "";
-    if(legalFormRange.getLength() > 0) {
-      legalForm = String.join("", tokenList.subList(
-            legalFormRange.getStart(),
-            legalFormRange.getStart() + legalFormRange.getLength())
-        );
-      legalForm = legalForm.toUpperCase();
-      legalForm = legalFormTransformScheme.apply(legalForm);
+  // Work-stealing pool of as many threads as the cores are, of its own
+  // rather than the common one, so batches don't queue behind parallel
+  // streams of the application
+  public static Executor getAsyncExecutor()
+  {
+    if(asyncExecutor == null) {
+      synchronized(MatchCoder.class) {
+        if(asyncExecutor == null)
+          asyncExecutor = Executors.newWorkStealingPool();
+      }
     }
+    return asyncExecutor;
+  }
 
-    String orgName = "";
-    if(orgNameRange.getLength() > 0) {
-      List<String> orgNameWordList = tokenList.subList(
-          orgNameRange.getStart(),
-          orgNameRange.getStart() + orgNameRange.getLength()
-        );
-      //Transform scheme and phonetics should be applied word by word
-      for(String orgNameWord: orgNameWordList) {
-        orgNameWord = orgNameWord.toUpperCase();
-      	orgNameWord = orgNameTransformScheme.apply(orgNameWord);
-        orgNameWord = namePhonetics.apply(orgNameWord);
-        orgName = orgName + orgNameWord + "$";
+  private static ScheduledExecutorService getAsyncScheduler()
+  {
+    if(asyncScheduler == null) {
+      synchronized(MatchCoder.class) {
+        if(asyncScheduler == null) {
+          asyncScheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+          {
+            Thread thread = new Thread(runnable, "MatchCoder async deadline");
+            thread.setDaemon(true);
+            return thread;
+          });
+        }
       }
     }
+    return asyncScheduler;
+  }
 
-    return finalPhonetics.apply(
-      (legalForm + "$$$$").substring(0, 4) +
-      (orgName   + "$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$").substring(0, 56)
-    );
+  // Codes of the names in their order, by the default engine. For id and
+  // name records pass the list of names and take codes by the same index
+  public static CompletableFuture<String[]> calcPrivAsync(List<String> nameList)
+  {
+    return defaultEngine.calcPrivAsync(nameList);
+  }
+
+  public static CompletableFuture<String[]> calcOrgAsync(List<String> nameList)
+  {
+    return defaultEngine.calcOrgAsync(nameList);
+  }
+
+  public static CompletableFuture<String[]> calcPrivAsync(List<String> nameList, int sensitivity,
+                                                          Executor executor, long timeoutMillis)
+  {
+    return defaultEngine.calcPrivAsync(nameList, sensitivity, executor, timeoutMillis);
+  }
+
+  public static CompletableFuture<String[]> calcOrgAsync(List<String> nameList, int sensitivity,
+                                                         Executor executor, long timeoutMillis)
+  {
+    return defaultEngine.calcOrgAsync(nameList, sensitivity, executor, timeoutMillis);
   }
 }
@@ -0,0 +1,449 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+// Matchcodes delimited text file of names into file of id, name and
+// matchcode. Input is memory mapped and split at line boundaries into
+// chunks, which are processed on all cores. Output goes in order of input
+// unless asked otherwise. MatchCoderDedupe extends it to take id and
+// matchcode of each row instead of the text output
+
+public class MatchCoderBatch
+{
+  private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+  private static final int SCAN_BUFFER_SIZE = 1 << 13;
+
+  private boolean org = false;
+  private boolean csv = false;
+  private char separator = '\t';
+  private boolean separatorSet = false;
+  private boolean header = false;
+  private int idColumn = 0;
+  private int nameColumn = 1;
+  private int threadCount = Runtime.getRuntime().availableProcessors();
+  private int chunkSize = 1 << 22;
+  private boolean ordered = true;
+  // All rows are matchcoded by the same engine, so the whole output is of
+  // the same knowledge base version even if it is reloaded meanwhile
+  private MatchCoder.Engine engine = null;
+
+  private long rowCount = 0;
+  private long badRowCount = 0;
+
+  // Rows to the record visitor, if any, are given instead of the text
+  interface RecordVisitor
+  {
+    void visit(String id, String code)
+      throws IOException;
+  }
+
+  private static final class ChunkResult
+  {
+    private byte[] data;
+    // Id and matchcode of each row in turn, for the record visitor
+    private List<String> recordList;
+    private int rowCount;
+    private int badRowCount;
+  }
+
+  private final class Chunk
+    implements Callable<ChunkResult>
+  {
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    private final boolean isRecordOutput;
+
+    public Chunk(FileChannel channel, long start, long end, boolean isRecordOutput)
+    {
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+      this.isRecordOutput = isRecordOutput;
+    }
+
+    public ChunkResult call()
+      throws IOException
+    {
+      ChunkResult result = new ChunkResult();
+      String text = decode(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+      StringBuilder out = (isRecordOutput ? null : new StringBuilder(text.length() + text.length() / 2));
+      if(isRecordOutput)
+        result.recordList = new ArrayList<>();
+      List<String> fieldList = new ArrayList<>();
+
+      int lineStart = 0;
+      while(lineStart < text.length()) {
+        int lineEnd = text.indexOf('\n', lineStart);
+        if(lineEnd < 0)
+          lineEnd = text.length();
+        int nextStart = lineEnd + 1;
+        if(lineEnd > lineStart && text.charAt(lineEnd - 1) == '\r')
+          --lineEnd;
+
+        if(lineEnd > lineStart) {
+          split(text.substring(lineStart, lineEnd), fieldList);
+          if(fieldList.size() > idColumn && fieldList.size() > nameColumn) {
+            String id = fieldList.get(idColumn);
+            String name = fieldList.get(nameColumn);
+            String code = (org ? engine.calcOrg(name) : engine.calcPriv(name));
+            if(isRecordOutput) {
+              result.recordList.add(id);
+              result.recordList.add(code);
+            }
+            else
+              appendRow(out, id, name, code);
+            ++result.rowCount;
+          }
+          else
+            ++result.badRowCount;
+        }
+        lineStart = nextStart;
+      }
+
+      if(!isRecordOutput)
+        result.data = out.toString().getBytes(StandardCharsets.UTF_8);
+      return result;
+    }
+  }
+
+  private static String decode(ByteBuffer buffer)
+    throws IOException
+  {
+    CharBuffer chars = StandardCharsets.UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE)
+      .decode(buffer);
+    return chars.toString();
+  }
+
+  // Fields of CSV may be quoted, with quotes inside doubled
+  private void split(String line, List<String> fieldList)
+  {
+    fieldList.clear();
+    int i = 0;
+    while(true) {
+      if(csv && i < line.length() && line.charAt(i) == '"') {
+        StringBuilder field = new StringBuilder();
+        ++i;
+        while(i < line.length()) {
+          char ch = line.charAt(i++);
+          if(ch == '"') {
+            if(i < line.length() && line.charAt(i) == '"')
+              ++i;
+            else
+              break;
+          }
+          field.append(ch);
+        }
+        fieldList.add(field.toString());
+        int next = line.indexOf(separator, i);
+        if(next < 0)
+          return;
+        i = next + 1;
+      }
+      else {
+        int next = line.indexOf(separator, i);
+        if(next < 0) {
+          fieldList.add(line.substring(i));
+          return;
+        }
+        fieldList.add(line.substring(i, next));
+        i = next + 1;
+      }
+    }
+  }
+
+  private void appendField(StringBuilder out, String field)
+  {
+    boolean quoted = csv && (field.indexOf(separator) >= 0 || field.indexOf('"') >= 0 ||
+                             field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0);
+    if(!quoted) {
+      out.append(field);
+      return;
+    }
+    out.append('"');
+    for(int i = 0; i < field.length(); ++i) {
+      char ch = field.charAt(i);
+      if(ch == '"')
+        out.append('"');
+      out.append(ch);
+    }
+    out.append('"');
+  }
+
+  // Row of output, id and name are as they are in input
+  private void appendRow(StringBuilder out, String id, String name, String code)
+  {
+    appendField(out, id);
+    out.append(separator);
+    appendField(out, name);
+    out.append(separator);
+    appendField(out, code);
+    out.append('\n');
+  }
+
+  // Position next to the first line end at or after the given one
+  private static long findLineEnd(FileChannel channel, long position, long size)
+    throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+    while(position < size) {
+      buffer.clear();
+      int count = channel.read(buffer, position);
+      if(count <= 0)
+        break;
+      for(int i = 0; i < count; ++i) {
+        if(buffer.get(i) == '\n')
+          return position + i + 1;
+      }
+      position += count;
+    }
+    return size;
+  }
+
+  // Skips byte order mark and copies header, if any, unless there is no
+  // text output
+  private long startOutput(FileChannel channel, long size, OutputStream out)
+    throws IOException
+  {
+    long position = 0;
+    ByteBuffer bom = ByteBuffer.allocate(3);
+    channel.read(bom, 0);
+    if(bom.position() == 3 && (bom.get(0) & 0xff) == 0xef && (bom.get(1) & 0xff) == 0xbb &&
+       (bom.get(2) & 0xff) == 0xbf)
+      position = 3;
+
+    if(!header)
+      return position;
+
+    long end = findLineEnd(channel, position, size);
+    if(out == null)
+      return end;
+    String line = decode(channel.map(FileChannel.MapMode.READ_ONLY, position, end - position));
+    line = line.replace("\n", "").replace("\r", "");
+    List<String> fieldList = new ArrayList<>();
+    split(line, fieldList);
+    String id = (fieldList.size() > idColumn ? fieldList.get(idColumn) : "id");
+    String name = (fieldList.size() > nameColumn ? fieldList.get(nameColumn) : "name");
+    writeHeader(out, id, name);
+    return end;
+  }
+
+  private void writeHeader(OutputStream out, String id, String name)
+    throws IOException
+  {
+    StringBuilder builder = new StringBuilder();
+    appendRow(builder, id, name, "matchcode");
+    out.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void write(OutputStream out, RecordVisitor visitor, ChunkResult result)
+    throws IOException
+  {
+    if(visitor != null) {
+      for(int i = 0; i < result.recordList.size(); i += 2)
+        visitor.visit(result.recordList.get(i), result.recordList.get(i + 1));
+    }
+    else
+      out.write(result.data);
+    rowCount += result.rowCount;
+    badRowCount += result.badRowCount;
+  }
+
+  private static ChunkResult getResult(Future<ChunkResult> future)
+    throws IOException, InterruptedException
+  {
+    try {
+      return future.get();
+    }
+    catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof IOException)
+        throw (IOException)cause;
+      if(cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if(cause instanceof Error)
+        throw (Error)cause;
+      throw new IOException(cause);
+    }
+  }
+
+  public boolean isOrg()
+  {
+    return org;
+  }
+
+  // Engine of the runs, the default one as of the first call
+  public MatchCoder.Engine getEngine()
+  {
+    if(engine == null)
+      engine = MatchCoder.getDefaultEngine();
+    return engine;
+  }
+
+  public long getRowCount()
+  {
+    return rowCount;
+  }
+
+  public long getBadRowCount()
+  {
+    return badRowCount;
+  }
+
+  public void run(Path inputPath, Path outputPath)
+    throws IOException, InterruptedException
+  {
+    try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(outputPath), OUTPUT_BUFFER_SIZE)) {
+      run(inputPath, out);
+    }
+  }
+
+  // Output of each chunk is written at once, from the calling thread
+  public void run(Path inputPath, OutputStream out)
+    throws IOException, InterruptedException
+  {
+    run(inputPath, out, null);
+  }
+
+  // Rows are given to the visitor the same way, with no text output
+  void run(Path inputPath, RecordVisitor visitor)
+    throws IOException, InterruptedException
+  {
+    run(inputPath, null, visitor);
+  }
+
+  private void run(Path inputPath, OutputStream out, RecordVisitor visitor)
+    throws IOException, InterruptedException
+  {
+    getEngine();
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try(FileChannel channel = FileChannel.open(inputPath, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long position = startOutput(channel, size, out);
+
+      // Chunks in flight are limited to keep memory bounded
+      int maxPendingCount = threadCount * 4;
+      CompletionService<ChunkResult> completionService = new ExecutorCompletionService<>(executor);
+      ArrayDeque<Future<ChunkResult>> pendingList = new ArrayDeque<>();
+      int pendingCount = 0;
+
+      while(position < size || pendingCount > 0) {
+        while(position < size && pendingCount < maxPendingCount) {
+          long end = (size - position > chunkSize ? findLineEnd(channel, position + chunkSize, size) : size);
+          Chunk chunk = new Chunk(channel, position, end, visitor != null);
+          if(ordered)
+            pendingList.add(executor.submit(chunk));
+          else
+            completionService.submit(chunk);
+          ++pendingCount;
+          position = end;
+        }
+        write(out, visitor, getResult(ordered ? pendingList.poll() : completionService.take()));
+        --pendingCount;
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  static final String OPTION_USAGE =
+    "[-org] [-csv] [-sep <char>] [-header] [-id <column>] [-name <column>]\n" +
+    "  [-threads <count>] [-chunk <bytes>]";
+
+  static final String OPTION_HELP =
+    "Columns are numbered from 1, default are 1 for id and 2 for name. Separator is tab by default,\n" +
+    "or comma for -csv, where fields may be quoted. Each record must be on a line of its own.";
+
+  private static void usage()
+  {
+    System.err.println(
+      "Usage: MatchCoderBatch " + OPTION_USAGE + " [-unordered]\n" +
+      "  <input file> <output file>\n" + OPTION_HELP);
+    System.exit(1);
+  }
+
+  // Index of the argument next to the option, or -1 if the option is not
+  // known or is wrong
+  int parseOption(String[] args, int argIndex)
+  {
+    try {
+      switch(args[argIndex]) {
+        case "-org": org = true; break;
+        case "-csv": csv = true; break;
+        case "-header": header = true; break;
+        case "-unordered": ordered = false; break;
+        case "-sep":
+          String sep = args[++argIndex];
+          if(sep.equals("\\t"))
+            sep = "\t";
+          if(sep.length() != 1)
+            return -1;
+          separator = sep.charAt(0);
+          separatorSet = true;
+          break;
+        case "-id": idColumn = Integer.parseInt(args[++argIndex]) - 1; break;
+        case "-name": nameColumn = Integer.parseInt(args[++argIndex]) - 1; break;
+        case "-threads": threadCount = Integer.parseInt(args[++argIndex]); break;
+        case "-chunk": chunkSize = Integer.parseInt(args[++argIndex]); break;
+        default: return -1;
+      }
+    }
+    catch(ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      return -1;
+    }
+    return argIndex + 1;
+  }
+
+  // Checks the options parsed and sets defaults depending on them
+  boolean checkOptions()
+  {
+    if(idColumn < 0 || nameColumn < 0 || threadCount < 1 || chunkSize < 1)
+      return false;
+    if(csv && !separatorSet)
+      separator = ',';
+    return true;
+  }
+
+  public static void main(String[] args)
+    throws IOException, InterruptedException
+  {
+    MatchCoderBatch batch = new MatchCoderBatch();
+    int argIndex = 0;
+    while(argIndex >= 0 && argIndex < args.length && args[argIndex].startsWith("-"))
+      argIndex = batch.parseOption(args, argIndex);
+    if(argIndex < 0 || args.length - argIndex != 2 || !batch.checkOptions())
+      usage();
+
+    long startTime = System.nanoTime();
+    batch.run(Paths.get(args[argIndex]), Paths.get(args[argIndex + 1]));
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+
+    System.out.println(String.format(
+      "Rows: %d, bad rows: %d, seconds: %.1f, rows/sec: %.0f, knowledge base version: %s",
+      batch.rowCount, batch.badRowCount, seconds, batch.rowCount / Math.max(seconds, 1e-3),
+      batch.getEngine().getVersion()));
+  }
+}
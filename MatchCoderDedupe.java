@@ -0,0 +1,458 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+
+// Clusters records of delimited text file of names by matchcode, so that
+// records of the same matchcode are duplicates of each other. Names are
+// matchcoded on all cores the way MatchCoderBatch does. Record ids are
+// grouped by matchcode in hash partitions in memory, and once the memory
+// budget is used up all the partitions are spilled to disk as runs sorted
+// by matchcode. Runs of each partition are merged at the end, so the
+// dataset needs not fit in memory. No more than fan-in runs are merged at
+// once, so for many spills runs are merged into fewer ones first, to keep
+// count of open files bounded.
+//
+// Output lines are cluster id, member record id and cluster size, tab
+// separated. Clusters smaller than the minimum size (records with no
+// duplicates by default) are counted but not written. Records getting
+// empty matchcode (blank names) are not clustered at all.
+//
+// Grouping is shared with MatchCoderIndex, which takes the groups of the
+// single partition in order of matchcode
+
+public class MatchCoderDedupe
+  extends MatchCoderBatch
+{
+  private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+  private static final int RUN_BUFFER_SIZE = 1 << 16;
+  // Rough heap cost of an id in the group and of the group itself, not
+  // counting chars of strings
+  private static final int ID_OVERHEAD = 56;
+  private static final int GROUP_OVERHEAD = 120;
+
+  private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+  private int partitionCount = 64;
+  private boolean isBlankGrouped = false;
+  private int minClusterSize = 2;
+  private int maxFanIn = 64;
+  private Path tempFolder = Paths.get(System.getProperty("java.io.tmpdir"));
+  private Path summaryPath = null;
+
+  private Partition[] partitionList;
+  private Path runFolder;
+  private long memoryUsed = 0;
+  private int spillCount = 0;
+  private int runCount = 0;
+  private int mergePassCount = 0;
+
+  private long recordCount = 0;
+  private long noCodeCount = 0;
+  private long groupCount = 0;
+  private long clusterCount = 0;
+  private long clusteredCount = 0;
+  private long maxClusterSize = 0;
+  // Count of groups by size: 1, 2, 3-4, 5-8 and so on
+  private long[] sizeCountList = new long[64];
+
+  interface GroupVisitor
+  {
+    void visit(String code, List<String> idList)
+      throws IOException;
+  }
+
+  public MatchCoderDedupe()
+  {
+  }
+
+  // Records of blank names are grouped too if asked for, under the empty
+  // matchcode
+  MatchCoderDedupe(int partitionCount, boolean isBlankGrouped)
+  {
+    this.partitionCount = partitionCount;
+    this.isBlankGrouped = isBlankGrouped;
+  }
+
+  private static final class Partition
+  {
+    private Map<String, List<String>> groupMap = new HashMap<>();
+    private List<Path> runPathList = new ArrayList<>();
+  }
+
+  // Run file entries are matchcode, count of ids and ids, sorted by
+  // matchcode. Readers of the same matchcode go in order of runs, so ids
+  // keep order of input
+  private static final class RunReader
+    implements Comparable<RunReader>
+  {
+    private final int index;
+    private final DataInputStream in;
+    private String code;
+    private int count;
+
+    public RunReader(int index, Path path)
+      throws IOException
+    {
+      this.index = index;
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), RUN_BUFFER_SIZE));
+    }
+
+    // False at the end of the run
+    public boolean next()
+      throws IOException
+    {
+      try {
+        code = readString(in);
+      }
+      catch(EOFException e) {
+        return false;
+      }
+      count = in.readInt();
+      return true;
+    }
+
+    public String readId()
+      throws IOException
+    {
+      return readString(in);
+    }
+
+    public void close()
+      throws IOException
+    {
+      in.close();
+    }
+
+    public int compareTo(RunReader other)
+    {
+      int result = code.compareTo(other.code);
+      return (result != 0 ? result : Integer.compare(index, other.index));
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String string)
+    throws IOException
+  {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in)
+    throws IOException
+  {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeGroup(DataOutputStream out, String code, List<String> idList)
+    throws IOException
+  {
+    writeString(out, code);
+    out.writeInt(idList.size());
+    for(String id: idList)
+      writeString(out, id);
+  }
+
+  private DataOutputStream newRun(int partitionIndex, List<Path> runPathList)
+    throws IOException
+  {
+    Path runPath = runFolder.resolve(partitionIndex + "-" + runCount++ + ".run");
+    runPathList.add(runPath);
+    return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(runPath), RUN_BUFFER_SIZE));
+  }
+
+  // Rows of chunks come here from the single thread, in order of input
+  private void add(String id, String code)
+    throws IOException
+  {
+    ++recordCount;
+    if(code.isEmpty()) {
+      ++noCodeCount;
+      if(!isBlankGrouped)
+        return;
+    }
+
+    Partition partition = partitionList[(code.hashCode() & Integer.MAX_VALUE) % partitionCount];
+    List<String> idList = partition.groupMap.get(code);
+    if(idList == null) {
+      idList = new ArrayList<>(2);
+      partition.groupMap.put(code, idList);
+      memoryUsed += GROUP_OVERHEAD + 2L * code.length();
+    }
+    idList.add(id);
+    memoryUsed += ID_OVERHEAD + 2L * id.length();
+
+    if(memoryUsed > memoryBudget)
+      spill();
+  }
+
+  private static List<String> getSortedCodes(Partition partition)
+  {
+    List<String> codeList = new ArrayList<>(partition.groupMap.keySet());
+    Collections.sort(codeList);
+    return codeList;
+  }
+
+  private void spill(int partitionIndex)
+    throws IOException
+  {
+    Partition partition = partitionList[partitionIndex];
+    if(partition.groupMap.isEmpty())
+      return;
+
+    try(DataOutputStream out = newRun(partitionIndex, partition.runPathList)) {
+      for(String code: getSortedCodes(partition))
+        writeGroup(out, code, partition.groupMap.get(code));
+    }
+    partition.groupMap = new HashMap<>();
+  }
+
+  private void spill()
+    throws IOException
+  {
+    for(int i = 0; i < partitionCount; ++i)
+      spill(i);
+    memoryUsed = 0;
+    ++spillCount;
+  }
+
+  private void countGroup(long size, boolean isWritten)
+  {
+    ++groupCount;
+    ++sizeCountList[size > 1 ? 64 - Long.numberOfLeadingZeros(size - 1) : 0];
+    maxClusterSize = Math.max(maxClusterSize, size);
+    if(isWritten) {
+      ++clusterCount;
+      clusteredCount += size;
+    }
+  }
+
+  private void writeMember(Writer out, long clusterId, String id, long size)
+    throws IOException
+  {
+    out.append(Long.toString(clusterId)).append('\t').append(id).append('\t')
+       .append(Long.toString(size)).append('\n');
+  }
+
+  private void writeCluster(Writer out, List<String> idList)
+    throws IOException
+  {
+    boolean isWritten = (idList.size() >= minClusterSize);
+    countGroup(idList.size(), isWritten);
+    if(isWritten) {
+      for(String id: idList)
+        writeMember(out, clusterCount, id, idList.size());
+    }
+  }
+
+  // Groups of the partition in order of matchcode
+  private void visitGroups(int partitionIndex, GroupVisitor visitor)
+    throws IOException
+  {
+    Partition partition = partitionList[partitionIndex];
+    if(partition.runPathList.isEmpty()) {
+      for(String code: getSortedCodes(partition))
+        visitor.visit(code, partition.groupMap.get(code));
+      partition.groupMap = new HashMap<>();
+      return;
+    }
+
+    // Each pass merges consecutive runs by fan-in into one in their place,
+    // so ids of the same matchcode still go in order of input
+    spill(partitionIndex);
+    while(partition.runPathList.size() > maxFanIn) {
+      List<Path> runPathList = partition.runPathList;
+      partition.runPathList = new ArrayList<>();
+      for(int i = 0; i < runPathList.size(); i += maxFanIn) {
+        List<Path> mergedPathList = runPathList.subList(i, Math.min(i + maxFanIn, runPathList.size()));
+        if(mergedPathList.size() == 1) {
+          partition.runPathList.add(mergedPathList.get(0));
+          continue;
+        }
+        try(DataOutputStream out = newRun(partitionIndex, partition.runPathList)) {
+          mergeRuns(mergedPathList, (code, idList) -> writeGroup(out, code, idList));
+        }
+      }
+      ++mergePassCount;
+    }
+    mergeRuns(partition.runPathList, visitor);
+  }
+
+  // Groups of the runs in order of matchcode. Runs are deleted then
+  private static void mergeRuns(List<Path> runPathList, GroupVisitor visitor)
+    throws IOException
+  {
+    PriorityQueue<RunReader> readerQueue = new PriorityQueue<>();
+    List<RunReader> readerList = new ArrayList<>();
+    try {
+      for(Path runPath: runPathList) {
+        RunReader reader = new RunReader(readerList.size(), runPath);
+        readerList.add(reader);
+        if(reader.next())
+          readerQueue.add(reader);
+      }
+
+      List<RunReader> groupReaderList = new ArrayList<>();
+      while(!readerQueue.isEmpty()) {
+        groupReaderList.clear();
+        String code = readerQueue.peek().code;
+        while(!readerQueue.isEmpty() && readerQueue.peek().code.equals(code))
+          groupReaderList.add(readerQueue.poll());
+
+        List<String> idList = new ArrayList<>();
+        for(RunReader reader: groupReaderList) {
+          for(int i = 0; i < reader.count; ++i)
+            idList.add(reader.readId());
+          if(reader.next())
+            readerQueue.add(reader);
+        }
+        visitor.visit(code, idList);
+      }
+    }
+    finally {
+      for(RunReader reader: readerList)
+        reader.close();
+      for(Path runPath: runPathList)
+        Files.deleteIfExists(runPath);
+    }
+  }
+
+  // Groups records of the input by matchcode, then gives the groups to the
+  // visitor partition by partition
+  void group(Path inputPath, GroupVisitor visitor)
+    throws IOException, InterruptedException
+  {
+    partitionList = new Partition[partitionCount];
+    for(int i = 0; i < partitionCount; ++i)
+      partitionList[i] = new Partition();
+
+    runFolder = Files.createTempDirectory(tempFolder, "dedupe");
+    try {
+      run(inputPath, this::add);
+      for(int i = 0; i < partitionCount; ++i)
+        visitGroups(i, visitor);
+    }
+    finally {
+      try(DirectoryStream<Path> runPathList = Files.newDirectoryStream(runFolder)) {
+        for(Path runPath: runPathList)
+          Files.deleteIfExists(runPath);
+      }
+      Files.deleteIfExists(runFolder);
+    }
+  }
+
+  public void dedupe(Path inputPath, Path outputPath)
+    throws IOException, InterruptedException
+  {
+    try(Writer out = new BufferedWriter(
+          new OutputStreamWriter(Files.newOutputStream(outputPath), StandardCharsets.UTF_8),
+          OUTPUT_BUFFER_SIZE))
+    {
+      group(inputPath, (code, idList) -> writeCluster(out, idList));
+    }
+  }
+
+  private String getSummary(double seconds)
+  {
+    StringWriter text = new StringWriter();
+    PrintWriter out = new PrintWriter(text);
+    out.println("Records: " + recordCount + ", bad rows: " + getBadRowCount() +
+                ", with empty matchcode: " + noCodeCount);
+    out.println("Distinct matchcodes: " + groupCount + ", clusters of " + minClusterSize +
+                " or more: " + clusterCount + " of " + clusteredCount + " records in total" +
+                ", max cluster size: " + maxClusterSize);
+    out.println("Matchcodes by count of records:");
+    for(int i = 0; i < sizeCountList.length; ++i) {
+      if(sizeCountList[i] == 0)
+        continue;
+      long low = (i == 0 ? 1 : (1L << (i - 1)) + 1);
+      long high = (i == 0 ? 1 : 1L << i);
+      out.println("  " + (low == high ? String.valueOf(low) : low + "-" + high) + ": " + sizeCountList[i]);
+    }
+    out.println(String.format("Spills: %d, merge passes: %d, seconds: %.1f, records/sec: %.0f",
+      spillCount, mergePassCount, seconds, recordCount / Math.max(seconds, 1e-3)));
+    out.println("Knowledge base version: " + getEngine().getVersion());
+    out.flush();
+    return text.toString();
+  }
+
+  private static void usage()
+  {
+    System.err.println(
+      "Usage: MatchCoderDedupe " + OPTION_USAGE + "\n" +
+      "  [-memory <megabytes>] [-partitions <count>] [-min-size <count>] [-fan-in <count>]\n" +
+      "  [-tmp <folder>] [-summary <file>] <input file> <output file>\n" + OPTION_HELP + "\n" +
+      "Memory is the budget for groups of ids before they are spilled to disk, default is half of\n" +
+      "the heap. Clusters of less than min size records are not written, default is 2. Fan-in is\n" +
+      "the max count of spilled runs merged at once, default is 64.");
+    System.exit(1);
+  }
+
+  @Override
+  int parseOption(String[] args, int argIndex)
+  {
+    try {
+      switch(args[argIndex]) {
+        case "-memory": memoryBudget = Long.parseLong(args[++argIndex]) << 20; break;
+        case "-partitions": partitionCount = Integer.parseInt(args[++argIndex]); break;
+        case "-min-size": minClusterSize = Integer.parseInt(args[++argIndex]); break;
+        case "-fan-in": maxFanIn = Integer.parseInt(args[++argIndex]); break;
+        case "-tmp": tempFolder = Paths.get(args[++argIndex]); break;
+        case "-summary": summaryPath = Paths.get(args[++argIndex]); break;
+        default: return super.parseOption(args, argIndex);
+      }
+    }
+    catch(ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      return -1;
+    }
+    return argIndex + 1;
+  }
+
+  @Override
+  boolean checkOptions()
+  {
+    return memoryBudget > 0 && partitionCount > 0 && minClusterSize > 0 && maxFanIn > 1 &&
+           super.checkOptions();
+  }
+
+  public static void main(String[] args)
+    throws IOException, InterruptedException
+  {
+    MatchCoderDedupe dedupe = new MatchCoderDedupe();
+    int argIndex = 0;
+    while(argIndex >= 0 && argIndex < args.length && args[argIndex].startsWith("-"))
+      argIndex = dedupe.parseOption(args, argIndex);
+    if(argIndex < 0 || args.length - argIndex != 2 || !dedupe.checkOptions())
+      usage();
+
+    long startTime = System.nanoTime();
+    dedupe.dedupe(Paths.get(args[argIndex]), Paths.get(args[argIndex + 1]));
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+
+    String summary = dedupe.getSummary(seconds);
+    System.out.print(summary);
+    if(dedupe.summaryPath != null)
+      Files.write(dedupe.summaryPath, summary.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+
+// Builds the matchcode index (see MatchCoder.Index) of delimited text file
+// of names, merges the delta index into the base one, or looks names up in
+// the index. Names are matchcoded on all cores the way MatchCoderBatch
+// does, and grouped by matchcode the way MatchCoderDedupe does, with disk
+// spill beyond the memory budget, so the file of any size can be indexed
+
+public final class MatchCoderIndex
+  extends MatchCoderDedupe
+{
+  private long codeCount = 0;
+  private long idCount = 0;
+
+  public MatchCoderIndex()
+  {
+    // Single partition gives groups in order of matchcode. Records of blank
+    // names are indexed too, for the delta to remove them from the base
+    super(1, true);
+  }
+
+  public void build(Path inputPath, Path indexPath)
+    throws IOException, InterruptedException
+  {
+    // Index is marked by the version its matchcodes are of
+    String version = getEngine().getVersion();
+    try(MatchCoder.Index.Writer out = new MatchCoder.Index.Writer(indexPath, isOrg(), version)) {
+      group(inputPath, out::add);
+      codeCount = out.getCodeCount();
+      idCount = out.getIdCount();
+    }
+  }
+
+  private static void usage()
+  {
+    System.err.println(
+      "Usage: MatchCoderIndex " + OPTION_USAGE + "\n" +
+      "  [-memory <megabytes>] [-fan-in <count>] [-tmp <folder>] <input file> <index file>\n" +
+      "or: MatchCoderIndex -merge <base index file> <delta index file> <output index file>\n" +
+      "or: MatchCoderIndex -find <index file> <name>...\n" + OPTION_HELP + "\n" +
+      "Memory is the budget for groups of ids before they are spilled to disk, default is half of\n" +
+      "the heap. Records of the delta replace ones of the same id in the base, blank names remove\n" +
+      "them. Output index file must differ from the base one.");
+    System.exit(1);
+  }
+
+  @Override
+  int parseOption(String[] args, int argIndex)
+  {
+    switch(args[argIndex]) {
+      case "-partitions":
+      case "-min-size":
+      case "-summary":
+        return -1;
+      default:
+        return super.parseOption(args, argIndex);
+    }
+  }
+
+  private static void merge(String[] args)
+    throws IOException
+  {
+    Path outputPath = Paths.get(args[3]);
+    if(Files.exists(outputPath) && (Files.isSameFile(outputPath, Paths.get(args[1])) ||
+                                    Files.isSameFile(outputPath, Paths.get(args[2]))))
+      usage();
+
+    long startTime = System.nanoTime();
+    MatchCoder.Index.merge(MatchCoder.Index.open(Paths.get(args[1])),
+      MatchCoder.Index.open(Paths.get(args[2])), outputPath);
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+
+    MatchCoder.Index index = MatchCoder.Index.open(outputPath);
+    System.out.println(String.format("Matchcodes: %d, records: %d, seconds: %.1f",
+      index.getCodeCount(), index.getIdCount(), seconds));
+  }
+
+  // Prints ids found for each name, tab separated after the name
+  private static void find(String[] args)
+    throws IOException
+  {
+    MatchCoder.Index index = MatchCoder.Index.open(Paths.get(args[1]));
+    if(!index.getVersion().equals(MatchCoder.getKnowledgeBaseVersion()))
+      System.err.println("Warning: index is of knowledge base version " + index.getVersion());
+
+    for(int i = 2; i < args.length; ++i) {
+      StringBuilder line = new StringBuilder(args[i]);
+      long startTime = System.nanoTime();
+      List<String> idList = index.findByName(args[i]);
+      long micros = (System.nanoTime() - startTime) / 1000;
+      for(String id: idList)
+        line.append('\t').append(id);
+      System.out.println(line);
+      System.err.println(idList.size() + " found in " + micros + " microseconds");
+    }
+  }
+
+  public static void main(String[] args)
+    throws IOException, InterruptedException
+  {
+    if(args.length > 0 && args[0].equals("-merge")) {
+      if(args.length != 4)
+        usage();
+      merge(args);
+      return;
+    }
+    if(args.length > 0 && args[0].equals("-find")) {
+      if(args.length < 3)
+        usage();
+      find(args);
+      return;
+    }
+
+    MatchCoderIndex index = new MatchCoderIndex();
+    int argIndex = 0;
+    while(argIndex >= 0 && argIndex < args.length && args[argIndex].startsWith("-"))
+      argIndex = index.parseOption(args, argIndex);
+    if(argIndex < 0 || args.length - argIndex != 2 || !index.checkOptions())
+      usage();
+
+    long startTime = System.nanoTime();
+    index.build(Paths.get(args[argIndex]), Paths.get(args[argIndex + 1]));
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+
+    System.out.println(String.format(
+      "Records: %d, bad rows: %d, matchcodes: %d, indexed: %d, seconds: %.1f, records/sec: %.0f\n" +
+      "Knowledge base version: %s",
+      index.getRowCount(), index.getBadRowCount(), index.codeCount, index.idCount,
+      seconds, index.getRowCount() / Math.max(seconds, 1e-3), index.getEngine().getVersion()));
+  }
+}
@@ -0,0 +1,34 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+
+// Compiles text resources of the data folders into the knowledge base
+// artifact
+
+public final class MatchCoderKb
+{
+  public static void main(String[] args)
+    throws IOException
+  {
+    int argIndex = 0;
+    String version = null;
+    if(args.length > 1 && args[0].equals("-version")) {
+      version = args[1];
+      argIndex = 2;
+    }
+    if(args.length - argIndex < 2) {
+      System.err.println("Usage: MatchCoderKb [-version <version>] <artifact file> <data folder>...");
+      System.exit(1);
+    }
+
+    String fileName = args[argIndex++];
+    List<Path> folderList = new ArrayList<>();
+    for(; argIndex < args.length; ++argIndex)
+      folderList.add(Paths.get(args[argIndex]));
+
+    MatchCoder.compileKnowledgeBase(Paths.get(fileName), version, folderList);
+  }
+}
@@ -0,0 +1,351 @@
+import java.sql.*;
+import java.math.BigDecimal;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import oracle.jdbc.*;
+import oracle.CartridgeServices.*;
+
+
+// Oracle database integration: bulk functions, and pipelined table function
+// implementation shared by private person and organization matchcoding.
+// Input rows of the latter are read and matchcoded in batches.
+// Connection is taken once per cursor and kept in the context along with
+// batch buffers, which are reused from fetch to fetch.
+//
+// With prefetch on, the next batch is read on fetch and then matchcoded in
+// background while the current one is being returned. It pays off only
+// where JVM threads run concurrently with the caller, which is not the
+// case for the database embedded JVM, so it is off by default there.
+//
+// Settings are taken from Java system properties on cursor open (see
+// dbms_java.set_property in the database):
+// matchcoder.oraBatchSize  max rows per fetch (default 4096)
+// matchcoder.oraPrefetch   matchcode the next batch in background (default
+//                          false)
+
+public abstract class MatchCoderOra
+  implements SQLData
+{
+  private static final String RECORD_TYPE = "MATCHCODER_RECORD_T";
+  private static final String TABLE_TYPE = "MATCHCODER_TABLE_T";
+  private static final String CODE_TABLE_TYPE = "MATCHCODER_CODE_TABLE_T";
+
+  private static final class Batch
+  {
+    private BigDecimal[] idList;
+    private String[] nameList;
+    private String[] codeList;
+    private int size;
+    private int position;
+
+    public Batch(int capacity)
+    {
+      idList = new BigDecimal[capacity];
+      nameList = new String[capacity];
+      codeList = new String[capacity];
+    }
+  }
+
+  private static final class Context
+  {
+    private final OracleConnection conn;
+    private final ResultSet input;
+    private final boolean org;
+    private final int batchSize;
+    private final boolean prefetch;
+    private final Batch[] batchList;
+    private int current;
+    private Future<Batch> pending;
+    private boolean isInputDone;
+
+    public Context(OracleConnection conn, ResultSet input, boolean org)
+    {
+      this.conn = conn;
+      this.input = input;
+      this.org = org;
+      batchSize = Math.max(1, Integer.getInteger("matchcoder.oraBatchSize", 4096));
+      prefetch = Boolean.getBoolean("matchcoder.oraPrefetch");
+      batchList = new Batch[prefetch ? 2 : 1];
+      for(int i = 0; i < batchList.length; ++i)
+        batchList[i] = new Batch(batchSize);
+    }
+
+    public OracleConnection getConnection()
+    {
+      return conn;
+    }
+
+    public ResultSet getInput()
+    {
+      return input;
+    }
+
+    public int getBatchSize()
+    {
+      return batchSize;
+    }
+
+    private void read(Batch batch)
+      throws SQLException
+    {
+      batch.size = 0;
+      batch.position = 0;
+      while(batch.size < batchSize && !isInputDone) {
+        if(!input.next()) {
+          isInputDone = true;
+          break;
+        }
+        batch.idList[batch.size] = input.getBigDecimal(1);
+        batch.nameList[batch.size] = input.getString(2);
+        ++batch.size;
+      }
+    }
+
+    private Batch calc(Batch batch)
+    {
+      for(int i = 0; i < batch.size; ++i) {
+        String name = batch.nameList[i];
+        batch.codeList[i] = (org ? MatchCoder.calcOrg(name) : MatchCoder.calcPriv(name));
+      }
+      return batch;
+    }
+
+    // Batch with rows left to return, or null at the end of input
+    public Batch getBatch()
+      throws SQLException
+    {
+      Batch batch = batchList[current];
+      if(batch.position < batch.size)
+        return batch;
+
+      if(pending != null) {
+        try {
+          pending.get();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SQLException(e);
+        }
+        catch (ExecutionException e) {
+          throw new SQLException(e.getCause());
+        }
+        finally {
+          pending = null;
+        }
+        current = (current + 1) % batchList.length;
+      }
+      else {
+        read(batch);
+        calc(batch);
+      }
+
+      batch = batchList[current];
+      if(batch.size == 0)
+        return null;
+
+      if(prefetch && !isInputDone) {
+        Batch next = batchList[(current + 1) % batchList.length];
+        read(next);
+        if(next.size > 0)
+          pending = getExecutor().submit(() -> calc(next));
+      }
+      return batch;
+    }
+
+    public void cancel()
+    {
+      if(pending != null)
+        pending.cancel(true);
+    }
+  }
+
+  private static volatile ExecutorService executor;
+
+  private static ExecutorService getExecutor()
+  {
+    if(executor == null) {
+      synchronized(MatchCoderOra.class) {
+        if(executor == null) {
+          executor = Executors.newCachedThreadPool(runnable ->
+          {
+            Thread thread = new Thread(runnable, "MatchCoderOra prefetch");
+            thread.setDaemon(true);
+            return thread;
+          });
+        }
+      }
+    }
+    return executor;
+  }
+
+  // Bulk functions, matchcoding the whole collection in one call. All of
+  // it is matchcoded by the same version of the knowledge base
+
+  public static Array calcPrivBulk(Array names)
+    throws SQLException
+  {
+    return calcBulk(names, false);
+  }
+
+  public static Array calcOrgBulk(Array names)
+    throws SQLException
+  {
+    return calcBulk(names, true);
+  }
+
+  public static Array calcPrivRecords(Array records)
+    throws SQLException
+  {
+    return calcRecords(records, false);
+  }
+
+  public static Array calcOrgRecords(Array records)
+    throws SQLException
+  {
+    return calcRecords(records, true);
+  }
+
+  private static Array calcBulk(Array names, boolean org)
+    throws SQLException
+  {
+    if(names == null)
+      return null;
+
+    Object[] nameList = (Object[])names.getArray();
+    MatchCoder.Engine engine = MatchCoder.getDefaultEngine();
+    String[] codeList = new String[nameList.length];
+    for(int i = 0; i < nameList.length; ++i) {
+      String name = (String)nameList[i];
+      codeList[i] = (org ? engine.calcOrg(name) : engine.calcPriv(name));
+    }
+
+    OracleConnection conn =
+      (OracleConnection)DriverManager.getConnection("jdbc:default:connection:");
+    return conn.createOracleArray(CODE_TABLE_TYPE, codeList);
+  }
+
+  // Records are of id and name, matchcode of input ones is ignored
+  private static Array calcRecords(Array records, boolean org)
+    throws SQLException
+  {
+    if(records == null)
+      return null;
+
+    Object[] recordList = (Object[])records.getArray();
+    MatchCoder.Engine engine = MatchCoder.getDefaultEngine();
+    OracleConnection conn =
+      (OracleConnection)DriverManager.getConnection("jdbc:default:connection:");
+    Object[] rowList = new Object[recordList.length];
+    for(int i = 0; i < recordList.length; ++i) {
+      if(recordList[i] == null)
+        continue;
+      Object[] attributeList = ((Struct)recordList[i]).getAttributes();
+      String name = (String)attributeList[1];
+      rowList[i] = conn.createStruct(RECORD_TYPE,
+        new Object[] { attributeList[0], name, (org ? engine.calcOrg(name) : engine.calcPriv(name)) });
+    }
+    return conn.createOracleArray(TABLE_TYPE, rowList);
+  }
+
+  public BigDecimal key;
+
+  protected static final BigDecimal SUCCESS = new BigDecimal(0);
+  protected static final BigDecimal FAILURE = new BigDecimal(1);
+
+  // SQLData interface implementation
+
+  private String typeName;
+
+  public String getSQLTypeName()
+    throws SQLException
+  {
+    return typeName;
+  }
+
+  public void readSQL(SQLInput stream, String typeName)
+    throws SQLException
+  {
+    this.typeName = typeName;
+    this.key = stream.readBigDecimal();
+  }
+
+  public void writeSQL(SQLOutput stream)
+    throws SQLException
+  {
+    stream.writeBigDecimal(key);
+  }
+
+  // ODCITable interface implementation, called by ones of subclasses
+
+  protected static BigDecimal start(Struct[] self, String selfTypeName, ResultSet input, boolean org)
+    throws SQLException
+  {
+    OracleConnection conn =
+      (OracleConnection)DriverManager.getConnection("jdbc:default:connection:");
+
+    Context context = new Context(conn, input, org);
+    input.setFetchSize(context.getBatchSize());
+
+    int key;
+    try {
+      key = ContextManager.setContext(context);
+    }
+    catch (CountException e) {
+      return FAILURE;
+    }
+
+    self[0] = conn.createStruct(selfTypeName, new Object[] { new BigDecimal(key) });
+    return SUCCESS;
+  }
+
+  protected BigDecimal fetch(BigDecimal rowCount, Array[] output)
+    throws SQLException
+  {
+    Context context;
+    try {
+      context = (Context)ContextManager.getContext(key.intValue());
+    }
+    catch (InvalidKeyException e) {
+      return FAILURE;
+    }
+    OracleConnection conn = context.getConnection();
+
+    Batch batch = context.getBatch();
+    if(batch == null)
+      return SUCCESS;
+
+    int count = Math.min(Math.max(1, rowCount.intValue()), batch.size - batch.position);
+    Object[] rowList = new Object[count];
+    for(int i = 0; i < count; ++i, ++batch.position) {
+      int pos = batch.position;
+      rowList[i] = conn.createStruct(RECORD_TYPE,
+        new Object[] { batch.idList[pos], batch.nameList[pos], batch.codeList[pos] });
+    }
+
+    output[0] = conn.createOracleArray(TABLE_TYPE, rowList);
+    return SUCCESS;
+  }
+
+  protected BigDecimal close()
+    throws SQLException
+  {
+    Context context;
+    try {
+      context = (Context)ContextManager.clearContext(key.intValue());
+    }
+    catch (InvalidKeyException e) {
+      return FAILURE;
+    }
+    context.cancel();
+    ResultSet input = context.getInput();
+
+    Statement stmt = input.getStatement();
+    input.close();
+    if(stmt != null)
+      stmt.close();
+
+    return SUCCESS;
+  }
+}
@@ -0,0 +1,424 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Matchcoding HTTP service, so applications share one loaded knowledge
+// base instead of embedding it each. Endpoints (UTF-8 text everywhere):
+//
+// GET  /priv?name=<name>[&sensitivity=<level>]  matchcode of the name
+// GET  /org?name=<name>[&sensitivity=<level>]
+// POST /priv/batch[?sensitivity=<level>]        names one per line in the
+// POST /org/batch[?sensitivity=<level>]         body, codes one per line
+//                                               in the same order back
+// GET  /metrics                                 service and engine metrics
+//
+// Each exchange is handled on a virtual thread where the JVM has them (21
+// or later), or on a pooled platform thread otherwise. Requests are queued
+// for the workers, as many as the cores are, each of which takes whatever
+// has been queued meanwhile as a single batch. So concurrent requests are
+// coalesced with no delay added, matchcoding runs on no more threads than
+// the cores, and the whole batch is done by the same knowledge base
+// version. Full queue is answered with 503 at once, and request not done
+// in time (-timeout) with 504
+
+public final class MatchCoderServer
+{
+  private static final int MAX_BODY_SIZE = 64 << 20;
+
+  private int port = 8080;
+  private String host = "127.0.0.1";
+  private int workerCount = Runtime.getRuntime().availableProcessors();
+  private int maxBatchSize = 256;
+  private int queueCapacity = 16384;
+  private long timeoutMillis = 30000;
+
+  private BlockingQueue<Job> queue;
+  private HttpServer server;
+  private ExecutorService exchangeExecutor;
+  private boolean isVirtual;
+  private final List<Thread> workerList = new ArrayList<>();
+
+  private final AtomicLong singleCount = new AtomicLong();
+  private final AtomicLong batchRequestCount = new AtomicLong();
+  private final AtomicLong nameCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong errorCount = new AtomicLong();
+  private final AtomicLong timeoutCount = new AtomicLong();
+  private final AtomicLong maxQueueDepth = new AtomicLong();
+  private final MatchCoder.Histogram batchSizeHistogram = new MatchCoder.Histogram();
+  private final MatchCoder.Histogram waitHistogram = new MatchCoder.Histogram();
+  private final MatchCoder.Histogram latencyHistogram = new MatchCoder.Histogram();
+
+  // Names of the request along with their codes once done
+  private static final class Job
+  {
+    private final boolean org;
+    private final int sensitivity;
+    private final String[] nameList;
+    private final String[] codeList;
+    private final long startTime = System.nanoTime();
+    private final CompletableFuture<String[]> result = new CompletableFuture<>();
+
+    public Job(boolean org, int sensitivity, String[] nameList)
+    {
+      this.org = org;
+      this.sensitivity = sensitivity;
+      this.nameList = nameList;
+      codeList = new String[nameList.length];
+    }
+  }
+
+  private static final class RequestException
+    extends Exception
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public RequestException(int status, String message)
+    {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  public void start()
+    throws IOException
+  {
+    // Knowledge base is loaded before listening, so it fails early and
+    // the first requests don't wait for it
+    MatchCoder.getDefaultEngine().load();
+
+    queue = new ArrayBlockingQueue<>(queueCapacity);
+    for(int i = 0; i < workerCount; ++i) {
+      Thread thread = new Thread(this::work, "MatchCoderServer worker " + i);
+      thread.setDaemon(true);
+      thread.start();
+      workerList.add(thread);
+    }
+
+    // Virtual thread per exchange where the JVM has them, which is looked
+    // up by reflection to keep the source of Java 8
+    try {
+      exchangeExecutor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      isVirtual = true;
+    }
+    catch(ReflectiveOperationException e) {
+      exchangeExecutor = Executors.newCachedThreadPool();
+    }
+    // Headers and body of a response are written apart, so with Nagle's
+    // algorithm on (JDK default) each keep-alive response would wait for
+    // the delayed ACK of the client, some 40 ms. Read by the JDK once, on
+    // the first server created, so it is set unless given on command line
+    if(System.getProperty("sun.net.httpserver.nodelay") == null)
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress(host, port), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(exchangeExecutor);
+    server.start();
+  }
+
+  public void stop()
+  {
+    server.stop(1);
+    exchangeExecutor.shutdownNow();
+    for(Thread thread: workerList)
+      thread.interrupt();
+  }
+
+  private void work()
+  {
+    List<Job> jobList = new ArrayList<>();
+    while(true) {
+      jobList.clear();
+      try {
+        jobList.add(queue.take());
+      }
+      catch(InterruptedException e) {
+        return;
+      }
+      int batchSize = jobList.get(0).nameList.length;
+      while(batchSize < maxBatchSize) {
+        Job job = queue.poll();
+        if(job == null)
+          break;
+        jobList.add(job);
+        batchSize += job.nameList.length;
+      }
+      batchSizeHistogram.record(batchSize);
+
+      long batchStartTime = System.nanoTime();
+      MatchCoder.Engine engine = MatchCoder.getDefaultEngine();
+      for(Job job: jobList) {
+        waitHistogram.record((batchStartTime - job.startTime) / 1000);
+        // Timed out already, nobody waits for it
+        if(job.result.isDone())
+          continue;
+        // Errors fail the job only, so the worker keeps serving the rest
+        try {
+          for(int i = 0; i < job.nameList.length; ++i) {
+            String name = job.nameList[i];
+            job.codeList[i] = (job.org ? engine.calcOrg(name, job.sensitivity)
+                                       : engine.calcPriv(name, job.sensitivity));
+          }
+          job.result.complete(job.codeList);
+        }
+        catch(Throwable e) {
+          job.result.completeExceptionally(e);
+        }
+      }
+    }
+  }
+
+  private String[] calc(boolean org, int sensitivity, String[] nameList)
+    throws RequestException, InterruptedException
+  {
+    Job job = new Job(org, sensitivity, nameList);
+    if(!queue.offer(job)) {
+      rejectedCount.incrementAndGet();
+      throw new RequestException(503, "queue is full");
+    }
+    long depth = queue.size();
+    for(long max; depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth);)
+      ;
+
+    try {
+      String[] codeList = job.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      latencyHistogram.record((System.nanoTime() - job.startTime) / 1000);
+      nameCount.addAndGet(nameList.length);
+      return codeList;
+    }
+    catch(ExecutionException e) {
+      errorCount.incrementAndGet();
+      throw new RequestException(500, String.valueOf(e.getCause()));
+    }
+    catch(TimeoutException e) {
+      // Cancelled so that the worker skips it, if not taken yet
+      job.result.cancel(false);
+      timeoutCount.incrementAndGet();
+      throw new RequestException(504, "not done in " + timeoutMillis + " ms");
+    }
+  }
+
+  private void handle(HttpExchange exchange)
+    throws IOException
+  {
+    try {
+      String path = exchange.getRequestURI().getPath();
+      Map<String, String> paramMap = parseQuery(exchange.getRequestURI().getRawQuery());
+      String method = exchange.getRequestMethod();
+      switch(path) {
+        case "/priv":
+        case "/org":
+          checkMethod(method, "GET");
+          String name = paramMap.get("name");
+          if(name == null)
+            throw new RequestException(400, "name is missing");
+          singleCount.incrementAndGet();
+          String[] codeList = calc(path.equals("/org"), getSensitivity(paramMap), new String[] { name });
+          respond(exchange, 200, codeList[0]);
+          break;
+        case "/priv/batch":
+        case "/org/batch":
+          checkMethod(method, "POST");
+          int sensitivity = getSensitivity(paramMap);
+          String[] nameList = readLines(exchange.getRequestBody());
+          batchRequestCount.incrementAndGet();
+          StringBuilder text = new StringBuilder();
+          for(String code: calc(path.equals("/org/batch"), sensitivity, nameList))
+            text.append(code).append('\n');
+          respond(exchange, 200, text.toString());
+          break;
+        case "/metrics":
+          checkMethod(method, "GET");
+          StringBuilder metrics = new StringBuilder();
+          for(Map.Entry<String, Long> entry: getMetricsSnapshot().entrySet())
+            metrics.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+          metrics.append("version\t").append(MatchCoder.getKnowledgeBaseVersion()).append('\n');
+          respond(exchange, 200, metrics.toString());
+          break;
+        default:
+          throw new RequestException(404, "no such endpoint");
+      }
+    }
+    catch(RequestException e) {
+      respond(exchange, e.status, e.getMessage() + "\n");
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      respond(exchange, 503, "interrupted\n");
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+  private static void checkMethod(String method, String expected)
+    throws RequestException
+  {
+    if(!method.equals(expected))
+      throw new RequestException(405, "use " + expected);
+  }
+
+  private static int getSensitivity(Map<String, String> paramMap)
+    throws RequestException
+  {
+    String sensitivity = paramMap.get("sensitivity");
+    if(sensitivity == null)
+      return MatchCoder.DEFAULT_SENSITIVITY;
+    try {
+      int level = Integer.parseInt(sensitivity);
+      for(int supported: MatchCoder.getSensitivityList()) {
+        if(level == supported)
+          return level;
+      }
+    }
+    catch(NumberFormatException e) {
+    }
+    throw new RequestException(400, "unsupported sensitivity: " + sensitivity);
+  }
+
+  private static Map<String, String> parseQuery(String query)
+    throws RequestException
+  {
+    Map<String, String> paramMap = new TreeMap<>();
+    if(query == null || query.isEmpty())
+      return paramMap;
+    try {
+      for(String param: query.split("&")) {
+        int pos = param.indexOf('=');
+        if(pos < 0)
+          paramMap.put(URLDecoder.decode(param, "UTF-8"), "");
+        else
+          paramMap.put(URLDecoder.decode(param.substring(0, pos), "UTF-8"),
+                       URLDecoder.decode(param.substring(pos + 1), "UTF-8"));
+      }
+    }
+    catch(UnsupportedEncodingException | IllegalArgumentException e) {
+      throw new RequestException(400, "malformed query");
+    }
+    return paramMap;
+  }
+
+  // Lines of the body, with no line end after the last one required
+  private static String[] readLines(InputStream in)
+    throws IOException, RequestException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] chunk = new byte[65536];
+    for(int count; (count = in.read(chunk)) >= 0;) {
+      bytes.write(chunk, 0, count);
+      if(bytes.size() > MAX_BODY_SIZE)
+        throw new RequestException(413, "body is over " + (MAX_BODY_SIZE >> 20) + " MB");
+    }
+    String text = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    if(text.isEmpty())
+      return new String[0];
+    if(text.endsWith("\n"))
+      text = text.substring(0, text.length() - 1);
+    String[] lineList = text.split("\n", -1);
+    for(int i = 0; i < lineList.length; ++i) {
+      if(lineList[i].endsWith("\r"))
+        lineList[i] = lineList[i].substring(0, lineList[i].length() - 1);
+    }
+    return lineList;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String text)
+    throws IOException
+  {
+    byte[] body = text.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    try(OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  // Counts of requests and names done, queue depth, and histograms of
+  // batch size in names, queue wait and request latency in microseconds,
+  // followed by metrics of the engine, if turned on
+  public Map<String, Long> getMetricsSnapshot()
+  {
+    Map<String, Long> map = new TreeMap<>();
+    map.put("server.requests.single", singleCount.get());
+    map.put("server.requests.batch", batchRequestCount.get());
+    map.put("server.requests.rejected", rejectedCount.get());
+    map.put("server.requests.failed", errorCount.get());
+    map.put("server.requests.timedOut", timeoutCount.get());
+    map.put("server.names", nameCount.get());
+    map.put("server.queue.depth", (long)queue.size());
+    map.put("server.queue.maxDepth", maxQueueDepth.get());
+    map.put("server.workers", (long)workerCount);
+    batchSizeHistogram.snapshot("server.batchSize", map);
+    waitHistogram.snapshot("server.waitMicros", map);
+    latencyHistogram.snapshot("server.latencyMicros", map);
+    map.putAll(MatchCoder.getMetricsSnapshot());
+    return map;
+  }
+
+  private static void usage()
+  {
+    System.err.println(
+      "Usage: MatchCoderServer [-port <port>] [-host <address>] [-workers <count>]\n" +
+      "  [-batch <count>] [-queue <count>] [-timeout <millis>]\n" +
+      "Default is port 8080 on 127.0.0.1 (-host 0.0.0.0 to listen on all interfaces), workers as\n" +
+      "many as the cores are, up to 256 names per batch, 16384 requests queued and 30000 ms\n" +
+      "per request.");
+    System.exit(1);
+  }
+
+  public static void main(String[] args)
+    throws IOException
+  {
+    MatchCoderServer server = new MatchCoderServer();
+    try {
+      for(int i = 0; i < args.length; ++i) {
+        switch(args[i]) {
+          case "-port": server.port = Integer.parseInt(args[++i]); break;
+          case "-host": server.host = args[++i]; break;
+          case "-workers": server.workerCount = Integer.parseInt(args[++i]); break;
+          case "-batch": server.maxBatchSize = Integer.parseInt(args[++i]); break;
+          case "-queue": server.queueCapacity = Integer.parseInt(args[++i]); break;
+          case "-timeout": server.timeoutMillis = Long.parseLong(args[++i]); break;
+          default: usage();
+        }
+      }
+    }
+    catch(ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      usage();
+    }
+    if(server.workerCount < 1 || server.maxBatchSize < 1 || server.queueCapacity < 1 ||
+       server.timeoutMillis < 1)
+      usage();
+
+    server.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+    System.out.println("Listening on " + server.host + ":" + server.port + " with " +
+                       server.workerCount + " workers, " +
+                       (server.isVirtual ? "virtual" : "platform") +
+                       " threads per exchange, knowledge base version " +
+                       MatchCoder.getKnowledgeBaseVersion());
+  }
+}
@@ -0,0 +1,7 @@
+@echo off
+
+setlocal
+set CLASSPATH=build;build/MatchCoder.jar
+set CLASS=MatchCoderBatch
+
+java -cp %CLASSPATH% %CLASS% %*
@@ -0,0 +1,106 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+// Memory allocated per matchcode in steady state. Being run by itself
+// it fails if gc.alloc.rate.norm of any benchmark exceeds the limit
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AllocationBench
+{
+  // Measured steady state is 868 bytes per calcPriv and 1046 per calcOrg
+  // call (see README.TXT), limits are about 10% above
+  private static final double MAX_PRIV_BYTES_PER_CALL = 960;
+  private static final double MAX_ORG_BYTES_PER_CALL = 1152;
+
+  private static final String[] privList = {
+    "Иванов Иван Иванович",
+    "ПЕТРОВА МАРИЯ СЕРГЕЕВНА",
+    "Сидоров-Петров Алексей",
+    "Вася Пупкин",
+    "Nguyen Van Hoi",
+    "Ким Ен Хо",
+    "Кузнецова Ольга Петровна 1980",
+    "Smirnov Dmitriy Aleksandrovich"
+  };
+
+  private static final String[] orgList = {
+    "ООО Рога и Копыта",
+    "Общество с ограниченной ответственностью \"Ромашка\"",
+    "ЗАО \"Северная Звезда-2\"",
+    "ПАО Сбербанк",
+    "ИП Иванов Иван Иванович",
+    "Акционерное общество Московский Завод",
+    "ГУП Мосгортранс",
+    "Roga i Kopyta LLC"
+  };
+
+  private int index;
+
+  @Benchmark
+  public String calcPriv()
+    throws Throwable
+  {
+    return (String)MatchCoderAccess.calcPriv.invokeExact(privList[index++ & (privList.length - 1)]);
+  }
+
+  @Benchmark
+  public String calcOrg()
+    throws Throwable
+  {
+    return (String)MatchCoderAccess.calcOrg.invokeExact(orgList[index++ & (orgList.length - 1)]);
+  }
+
+  public static void main(String[] args)
+    throws RunnerException
+  {
+    boolean isPassed = true;
+    for(RunResult runResult: new Runner(
+        new OptionsBuilder()
+          .include(AllocationBench.class.getName())
+          .addProfiler(GCProfiler.class)
+          .build()
+      ).run())
+    {
+      String benchmark = runResult.getParams().getBenchmark();
+      double maxBytesPerCall = (benchmark.endsWith(".calcOrg") ? MAX_ORG_BYTES_PER_CALL
+                                                               : MAX_PRIV_BYTES_PER_CALL);
+      for(Result result: runResult.getSecondaryResults().values()) {
+        // Older JMH versions prefix the label with a dot
+        if(!result.getLabel().endsWith("gc.alloc.rate.norm"))
+          continue;
+        double bytesPerCall = result.getScore();
+        if(bytesPerCall > maxBytesPerCall) {
+          System.out.println(benchmark + ": allocates " + Math.round(bytesPerCall) +
+                             " bytes per call, limit is " + Math.round(maxBytesPerCall));
+          isPassed = false;
+        }
+        else
+          System.out.println(benchmark + ": allocates " + Math.round(bytesPerCall) +
+                             " bytes per call");
+      }
+    }
+    System.exit(isPassed ? 0 : 1);
+  }
+}
@@ -0,0 +1,62 @@
+package bench;
+
+
+// Sample input of the benchmarks by kind
+
+final class Corpus
+{
+  private static final String[] privShort = {
+    "Иванов Иван Иванович",
+    "ПЕТРОВА МАРИЯ СЕРГЕЕВНА",
+    "Сидоров Алексей Петрович",
+    "Кузнецова Ольга",
+    "Смирнов Д.А.",
+    "ВАСИЛЬЕВ ПЁТР НИКОЛАЕВИЧ",
+    "Попова Анна Викторовна",
+    "Ким Ен Хо"
+  };
+
+  private static final String[] privLong = {
+    "Сидоров-Петров Алексей Николаевич оглы",
+    "Мамедов Рустам Ильхам Оглы Гусейн Заде",
+    "КУЗНЕЦОВА-ВОДКИНА ОЛЬГА ПЕТРОВНА 1980 Г.Р.",
+    "Иванов Иван Иванович ИП Иванов И.И. доверенность",
+    "Нгуен Ван Хой Тхань Лонг",
+    "Салтыков-Щедрин Михаил Евграфович, писатель",
+    "ЛЕОНОВА (ПЕТРОВА) МАРИЯ ВЛАДИМИРОВНА",
+    "Абдурахманов Абдурахман Абдурахманович ибн Хаттаб"
+  };
+
+  private static final String[] privLatin = {
+    "Smirnov Dmitriy Aleksandrovich",
+    "IVANOVA ELENA SERGEEVNA",
+    "Nguyen Van Hoi",
+    "Kuznetsov Petr",
+    "Shcherbakova Yuliya Viktorovna",
+    "Zhukov Georgiy Konstantinovich",
+    "Chaikovskiy Petr Ilich",
+    "Khabibullin Rinat"
+  };
+
+  private static final String[] org = {
+    "ООО Рога и Копыта",
+    "Общество с ограниченной ответственностью \"Ромашка\"",
+    "ЗАО \"Северная Звезда-2\"",
+    "ПАО Сбербанк",
+    "ИП Иванов Иван Иванович",
+    "Акционерное общество Московский Завод",
+    "ГУП Мосгортранс",
+    "Roga i Kopyta LLC"
+  };
+
+  public static String[] get(String name)
+  {
+    switch(name) {
+      case "privShort": return privShort;
+      case "privLong": return privLong;
+      case "privLatin": return privLatin;
+      case "org": return org;
+      default: throw new IllegalArgumentException("unknown corpus: " + name);
+    }
+  }
+}
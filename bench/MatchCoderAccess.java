@@ -0,0 +1,71 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.function.Function;
+
+
+// MatchCoder is in the default package, which JMH doesn't take benchmarks
+// of and which can't be imported, so it is reached via method handles
+
+final class MatchCoderAccess
+{
+  public static final MethodHandle calcPriv = findCalc("calcPriv");
+  public static final MethodHandle calcOrg = findCalc("calcOrg");
+  public static final MethodHandle calcPrivCodes = findCalcCodes("calcPrivCodes");
+  public static final MethodHandle calcOrgCodes = findCalcCodes("calcOrgCodes");
+
+  private static MethodHandle findCalc(String name)
+  {
+    try {
+      return MethodHandles.publicLookup().findStatic(
+        Class.forName("MatchCoder"), name, MethodType.methodType(String.class, String.class));
+    }
+    catch(ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Codes of several levels of sensitivity
+  private static MethodHandle findCalcCodes(String name)
+  {
+    try {
+      return MethodHandles.publicLookup().findStatic(
+        Class.forName("MatchCoder"), name, MethodType.methodType(String[].class, String.class, int[].class));
+    }
+    catch(ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Stages are not a public API, so they are reached by reflection. Both
+  // are called in benchmark setup only
+
+  // Stage of the default engine, see MatchCoder.getStage()
+  @SuppressWarnings("unchecked")
+  public static Function<Object, Object> getStage(String name)
+  {
+    try {
+      Method method = Class.forName("MatchCoder").getDeclaredMethod("getStage", String.class);
+      method.setAccessible(true);
+      return (Function<Object, Object>)method.invoke(null, name);
+    }
+    catch(ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static Object prepare(Function<Object, Object> stage, String fullName)
+  {
+    try {
+      Method method = stage.getClass().getDeclaredMethod("prepare", String.class);
+      method.setAccessible(true);
+      return method.invoke(stage, fullName);
+    }
+    catch(ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// End to end matchcoding: calcPriv for private person corpora, calcOrg for
+// organizations. Same on all the cores shows how it scales. Codes of all
+// the levels of sensitivity at once are compared with the single one
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBench
+{
+  @Param({"privShort", "privLong", "privLatin", "org"})
+  public String corpus;
+
+  private static final int[] SENSITIVITY_LIST = { 85, 80, 75 };
+
+  private String[] inputList;
+  private boolean org;
+  private int index;
+
+  @Setup
+  public void setup()
+  {
+    inputList = Corpus.get(corpus);
+    org = corpus.equals("org");
+  }
+
+  private String calc()
+    throws Throwable
+  {
+    String input = inputList[index++ & (inputList.length - 1)];
+    return (org ? (String)MatchCoderAccess.calcOrg.invokeExact(input) :
+                  (String)MatchCoderAccess.calcPriv.invokeExact(input));
+  }
+
+  @Benchmark
+  public String calcOneThread()
+    throws Throwable
+  {
+    return calc();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String calcAllCores()
+    throws Throwable
+  {
+    return calc();
+  }
+
+  @Benchmark
+  public String[] calcAllLevelsOneThread()
+    throws Throwable
+  {
+    String input = inputList[index++ & (inputList.length - 1)];
+    return (org ? (String[])MatchCoderAccess.calcOrgCodes.invokeExact(input, SENSITIVITY_LIST) :
+                  (String[])MatchCoderAccess.calcPrivCodes.invokeExact(input, SENSITIVITY_LIST));
+  }
+}
@@ -0,0 +1,69 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Stages of private person pipeline one by one, including each of the
+// phonetics passes. Input of each stage is prepared beforehand
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PrivStageBench
+{
+  @Param({"privShort", "privLong", "privLatin"})
+  public String corpus;
+
+  @Param({
+    "priv.preproc", "priv.chop", "priv.translit", "priv.categorize", "priv.search",
+    "priv.nameTransform", "priv.namePhonetics", "priv.patronymPhonetics", "priv.pad", "priv.final",
+    "priv.phonetics.IRBICON Double Letter Removal.phx.txt",
+    "priv.phonetics.IRBICON Patronymic Suffix Removal.phx.txt",
+    "priv.phonetics.IRBICON Vowel Transformation and Removal.phx.txt",
+    "priv.phonetics.MatchCode Final Replace.phx.txt"
+  })
+  public String stage;
+
+  private Function<Object, Object> operator;
+  private Object[] inputList;
+  private int index;
+
+  @Setup
+  public void setup()
+  {
+    operator = MatchCoderAccess.getStage(stage);
+    String[] corpusList = Corpus.get(corpus);
+    inputList = new Object[corpusList.length];
+    for(int i = 0; i < corpusList.length; ++i)
+      inputList[i] = MatchCoderAccess.prepare(operator, corpusList[i]);
+  }
+
+  @Benchmark
+  public Object applyOneThread()
+  {
+    return operator.apply(inputList[index++ & (inputList.length - 1)]);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object applyAllCores()
+  {
+    return operator.apply(inputList[index++ & (inputList.length - 1)]);
+  }
+}
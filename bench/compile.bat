@@ -0,0 +1,11 @@
+@echo off
+
+setlocal
+set CLASSPATH=lib/*;../build/MatchCoder.jar
+set SRC=AllocationBench.java Corpus.java MatchCoderAccess.java OrgStageBench.java PipelineBench.java PrivStageBench.java
+
+set FLAGS=-Xlint:deprecation -Xlint:unchecked -encoding utf8
+
+if not exist build md build
+
+javac -cp %CLASSPATH% %FLAGS% -d build %SRC%
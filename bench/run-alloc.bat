@@ -0,0 +1,7 @@
+@echo off
+
+setlocal
+set CLASSPATH=build;lib/*;../build/MatchCoder.jar
+set CLASS=bench.AllocationBench
+
+java -cp %CLASSPATH% %CLASS%
@@ -0,0 +1,7 @@
+@echo off
+
+setlocal
+set CLASSPATH=build;lib/*;../build/MatchCoder.jar
+set CLASS=org.openjdk.jmh.Main
+
+java -cp %CLASSPATH% %CLASS% -prof gc %*
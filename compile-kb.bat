@@ -0,0 +1,10 @@
+@echo off
+
+setlocal
+set DATA=data/forest/target data/phonetx data/regexlib data/scheme data/vocab/target
+set CLASSPATH=build
+set CLASS=MatchCoderKb
+
+if not exist build md build
+
+java -cp %CLASSPATH% %CLASS% build/MatchCoder.kb %DATA%
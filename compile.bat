@@ -9,7 +9,7 @@ exit 1
 
 setlocal
 set CLASSPATH=%ORACLE_HOME%/jdbc/lib/*;%ORACLE_HOME%/rdbms/jlib/*
-set SRC=MatchCoder.java MatchCoderPrivOra.java MatchCoderOrgOra.java
+set SRC=MatchCoder.java MatchCoderKb.java MatchCoderBatch.java MatchCoderDedupe.java MatchCoderIndex.java MatchCoderServer.java MatchCoderOra.java MatchCoderPrivOra.java MatchCoderOrgOra.java
 
 set FLAGS=-Xlint:deprecation -Xlint:unchecked -encoding utf8
 
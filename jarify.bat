@@ -8,5 +8,6 @@ jar uMvf MatchCoder.jar -C ../data/phonetx .
 jar uMvf MatchCoder.jar -C ../data/regexlib .
 jar uMvf MatchCoder.jar -C ../data/scheme .
 jar uMvf MatchCoder.jar -C ../data/vocab/target .
+if exist MatchCoder.kb jar uMvf MatchCoder.jar MatchCoder.kb
 
-jar cMvf MatchCoderOra.jar MatchCoderPrivOra.class MatchCoderPrivOra$*.class MatchCoderOrgOra.class MatchCoderOrgOra$*.class
+jar cMvf MatchCoderOra.jar MatchCoderOra.class MatchCoderOra$*.class MatchCoderPrivOra.class MatchCoderPrivOra$*.class MatchCoderOrgOra.class MatchCoderOrgOra$*.class
@@ -5,3 +5,29 @@ select matchcoder_pkg.calc_org('ООО Рога и Копыта') from dual;
 -- pipelined function
 select * from table(matchcoder_pkg.calc_priv_pipe(cursor(select 1, 'Вася Пупкин' from dual)));
 select * from table(matchcoder_pkg.calc_org_pipe(cursor(select 1, 'ООО Рога и Копыта' from dual)));
+
+-- bulk functions
+select * from table(matchcoder_pkg.calc_priv_bulk(matchcoder_name_table_t('Вася Пупкин', 'Пупкин Василий')));
+select * from table(matchcoder_pkg.calc_org_records(matchcoder_table_t(
+  matchcoder_record_t(1, 'ООО Рога и Копыта', null), matchcoder_record_t(2, 'Рога и Копыта ООО', null))));
+
+-- bulk update of the table by chunks, persons(id, name, matchcode) here
+declare
+  type id_table_t is table of number;
+  cursor person_cur is select id, name from persons;
+  ids id_table_t;
+  names matchcoder_name_table_t;
+  codes matchcoder_code_table_t;
+begin
+  open person_cur;
+  loop
+    fetch person_cur bulk collect into ids, names limit 10000;
+    exit when ids.count = 0;
+    codes := matchcoder_pkg.calc_priv_bulk(names);
+    forall i in 1 .. ids.count
+      update persons set matchcode = codes(i) where id = ids(i);
+  end loop;
+  close person_cur;
+  commit;
+end;
+/
@@ -9,6 +9,12 @@ create or replace type matchcoder_record_t is object
 create or replace type matchcoder_table_t as table of matchcoder_record_t
 /
 
+create or replace type matchcoder_name_table_t as table of varchar2(250)
+/
+
+create or replace type matchcoder_code_table_t as table of varchar2(60)
+/
+
 /*
 -- obsolete object from version 1.0.0
 drop type matchcoder_ora_t
@@ -62,6 +68,16 @@ create or replace package matchcoder_pkg is
     pipelined parallel_enable (partition input by any)
     using matchcoder_priv_ora_t;
 
+  -- Bulk functions make one call to java for the whole collection, instead
+  -- of one per row. Codes go in order of names, records get id and name of
+  -- input ones
+
+  function calc_priv_bulk(names matchcoder_name_table_t) return matchcoder_code_table_t
+    as language java name 'MatchCoderOra.calcPrivBulk(java.sql.Array) return java.sql.Array';
+
+  function calc_priv_records(records matchcoder_table_t) return matchcoder_table_t
+    as language java name 'MatchCoderOra.calcPrivRecords(java.sql.Array) return java.sql.Array';
+
   function calc_org(input varchar2) return varchar2
     as language java name 'MatchCoder.calcOrg(java.lang.String) return java.lang.String';
 
@@ -69,5 +85,17 @@ create or replace package matchcoder_pkg is
     pipelined parallel_enable (partition input by any)
     using matchcoder_org_ora_t;
 
+  function calc_org_bulk(names matchcoder_name_table_t) return matchcoder_code_table_t
+    as language java name 'MatchCoderOra.calcOrgBulk(java.sql.Array) return java.sql.Array';
+
+  function calc_org_records(records matchcoder_table_t) return matchcoder_table_t
+    as language java name 'MatchCoderOra.calcOrgRecords(java.sql.Array) return java.sql.Array';
+
+  function get_version return varchar2
+    as language java name 'MatchCoder.getKnowledgeBaseVersion() return java.lang.String';
+
+  function reload(path varchar2) return varchar2
+    as language java name 'MatchCoder.reload(java.lang.String) return java.lang.String';
+
 end;
 /
@@ -0,0 +1,7 @@
+@echo off
+
+setlocal
+set CLASSPATH=build;build/MatchCoder.jar
+set CLASS=MatchCoderServer
+
+java -cp %CLASSPATH% %CLASS% %*
@@ -4,12 +4,41 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 
 public final class TestBatch
 {
+  private static final int BLOCK_SIZE = 65536;
+
+  // Lines are id, name and reference matchcode separated by tab
+  private static void check(List<String[]> recordList)
+    throws InterruptedException
+  {
+    List<String> nameList = new ArrayList<>(recordList.size());
+    for(String[] parts: recordList)
+      nameList.add(parts[1]);
+
+    String[] matchCodeList;
+    try {
+      matchCodeList = MatchCoder.calcPrivAsync(nameList).get();
+    }
+    catch(ExecutionException e) {
+      System.out.println("block of " + recordList.get(0)[0] + ":\r\n" + e.getCause().getMessage());
+      return;
+    }
+
+    for(int i = 0; i < recordList.size(); ++i) {
+      String[] parts = recordList.get(i);
+      if(!matchCodeList[i].equals(parts[2]))
+        System.out.println(parts[0] + " " + parts[1] + ": no match: " + parts[2] + " <> " + matchCodeList[i]);
+    }
+  }
+
   public static void main(String[] args)
-    throws IOException
+    throws IOException, InterruptedException
   {
     DateTimeFormatter dateFmt = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
     System.out.println("Started at " + dateFmt.format(LocalDateTime.now()));
@@ -22,25 +51,19 @@ public final class TestBatch
           )
         )
     ) {
-      in.lines()
-        .parallel() // Does serial read gets to concurrent processing here? Not really sure. Nevermind so far..
-        .forEach(line ->
-        {
-          String[] parts = line.split("\t");
-          if(parts.length == 3) {
-            String id = parts[0];
-            String name = parts[1];
-            String refMatchCode = parts[2];
-            try {
-              String matchCode = MatchCoder.calcPriv(name);
-              if(!matchCode.equals(refMatchCode))
-                System.out.println(id + " " + name + ": no match: " + refMatchCode + " <> " + matchCode);
-            }
-            catch(Exception e) {
-              System.out.println(id + " " + name + ":\r\n" + e.getMessage());
-            }
-          }
-        });
+      // Blocks of lines are matchcoded on all cores by the async batch API
+      List<String[]> recordList = new ArrayList<>(BLOCK_SIZE);
+      for(String line; (line = in.readLine()) != null;) {
+        String[] parts = line.split("\t");
+        if(parts.length == 3)
+          recordList.add(parts);
+        if(recordList.size() == BLOCK_SIZE) {
+          check(recordList);
+          recordList.clear();
+        }
+      }
+      if(!recordList.isEmpty())
+        check(recordList);
     }
 
     System.out.println("Finished at " + dateFmt.format(LocalDateTime.now()));
@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+
+// Corpus of names shared by the tests measuring rows/sec over it, lines of
+// which are id and name separated by tab, and whatever else after them, as
+// in data/reference-data.txt. No corpus at all fails the test, since a
+// handful of names substituted would measure nothing but the caches
+
+public final class TestCorpus
+{
+  public static final String DEFAULT_PATH = "data/reference-data.txt";
+
+  private TestCorpus()
+  {
+  }
+
+  // Id and name of each record
+  public static List<String[]> readRecords(Path path)
+    throws IOException
+  {
+    if(!Files.exists(path))
+      fail(path + " is not found");
+
+    List<String[]> recordList = new ArrayList<>();
+    for(String line: Files.readAllLines(path, StandardCharsets.UTF_8)) {
+      String[] parts = line.split("\t");
+      if(parts.length >= 2)
+        recordList.add(new String[] { parts[0], parts[1] });
+    }
+    if(recordList.isEmpty())
+      fail(path + " has no lines of id and name");
+    return recordList;
+  }
+
+  public static List<String> readNames(Path path)
+    throws IOException
+  {
+    List<String> nameList = new ArrayList<>();
+    for(String[] record: readRecords(path))
+      nameList.add(record[1]);
+    return nameList;
+  }
+
+  private static void fail(String message)
+  {
+    System.err.println("ERROR! " + message + ". The test needs the corpus of names: put it into\n" +
+                       DEFAULT_PATH + " (see data/README.TXT) or give it by -names option");
+    System.exit(2);
+  }
+}
@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+
+// Builds the matchcode index of the first 90% of names as the base and of
+// the rest as the delta, where also some of base records get other names
+// and some get blank ones to be removed. Lookups of every matchcode in the
+// base and in the merged index are checked against the grouping in memory,
+// and microseconds per lookup are printed
+
+public final class TestIndex
+{
+  // Groups ids by matchcode, in order of records
+  private static Map<String, List<String>> group(boolean org, List<String[]> recordList)
+  {
+    Map<String, List<String>> groupMap = new TreeMap<>();
+    for(String[] record: recordList) {
+      String code = (org ? MatchCoder.calcOrg(record[1]) : MatchCoder.calcPriv(record[1]));
+      groupMap.computeIfAbsent(code, key -> new ArrayList<>()).add(record[0]);
+    }
+    return groupMap;
+  }
+
+  private static MatchCoder.Index build(boolean org, Map<String, List<String>> groupMap, Path path)
+    throws IOException
+  {
+    try(MatchCoder.Index.Writer out =
+          new MatchCoder.Index.Writer(path, org, MatchCoder.getKnowledgeBaseVersion()))
+    {
+      for(Map.Entry<String, List<String>> entry: groupMap.entrySet())
+        out.add(entry.getKey(), entry.getValue());
+    }
+    return MatchCoder.Index.open(path);
+  }
+
+  private static int check(String title, MatchCoder.Index index, Map<String, List<String>> groupMap)
+  {
+    int errorCount = 0;
+    long startTime = System.nanoTime();
+    for(Map.Entry<String, List<String>> entry: groupMap.entrySet()) {
+      // Records of blank names are never found
+      List<String> expectedList = (entry.getKey().isEmpty() ? new ArrayList<>() : entry.getValue());
+      List<String> idList = index.findByCode(entry.getKey());
+      if(!idList.equals(expectedList) || !index.findByCode(entry.getKey() + "#").isEmpty()) {
+        if(++errorCount <= 10)
+          System.out.println(title + ": " + entry.getKey() + ": " + idList + " <> " + expectedList);
+      }
+    }
+    double micros = (System.nanoTime() - startTime) / 1e3 / Math.max(groupMap.size(), 1) / 2;
+    System.out.println(String.format("%s: %d matchcodes of %d records, %.1f microseconds per lookup",
+      title, index.getCodeCount(), index.getIdCount(), micros));
+    return errorCount;
+  }
+
+  // Merged index keeps no records of blank names, which are removals done
+  private static int checkRemovals(String title, MatchCoder.Index index, Map<String, List<String>> groupMap)
+  {
+    long idCount = 0;
+    for(Map.Entry<String, List<String>> entry: groupMap.entrySet()) {
+      if(!entry.getKey().isEmpty())
+        idCount += entry.getValue().size();
+    }
+    if(index.getIdCount() == idCount)
+      return 0;
+    System.out.println(title + ": " + index.getIdCount() + " records <> " + idCount + " of non-blank names");
+    return 1;
+  }
+
+  // Records of the list, with ones of the delta put in place of the same id
+  private static List<String[]> apply(List<String[]> recordList, List<String[]> deltaList)
+  {
+    Set<String> deltaIdSet = new HashSet<>();
+    for(String[] record: deltaList)
+      deltaIdSet.add(record[0]);
+    List<String[]> mergedList = new ArrayList<>();
+    for(String[] record: recordList) {
+      if(!deltaIdSet.contains(record[0]))
+        mergedList.add(record);
+    }
+    mergedList.addAll(deltaList);
+    return mergedList;
+  }
+
+  public static void main(String[] args)
+    throws IOException
+  {
+    boolean org = false;
+    Path namePath = Paths.get(TestCorpus.DEFAULT_PATH);
+
+    for(int i = 0; i < args.length; ++i) {
+      if(args[i].equals("-org"))
+        org = true;
+      else if(args[i].equals("-names") && i + 1 < args.length)
+        namePath = Paths.get(args[++i]);
+      else {
+        System.err.println("Usage: TestIndex [-org] [-names <file>]");
+        System.exit(2);
+      }
+    }
+
+    List<String[]> recordList = TestCorpus.readRecords(namePath);
+    int baseSize = recordList.size() * 9 / 10;
+    List<String[]> baseList = recordList.subList(0, baseSize);
+    List<String[]> deltaList = new ArrayList<>(recordList.subList(baseSize, recordList.size()));
+    for(int i = 0; i < baseSize; i += 50) {
+      String[] record = baseList.get(i);
+      deltaList.add(new String[] { record[0], (i % 100 == 0 ? "" : baseList.get(baseSize - 1 - i)[1]) });
+    }
+
+    List<String[]> mergedList = apply(baseList, deltaList);
+
+    // Next day delta blanks and renames other records, and names again
+    // some of ones blanked the day before
+    List<String[]> nextDeltaList = new ArrayList<>();
+    for(int i = 25; i < mergedList.size(); i += 50) {
+      String[] record = mergedList.get(i);
+      nextDeltaList.add(new String[] { record[0], (i % 100 == 25 ? "" : mergedList.get(i / 2)[1]) });
+    }
+    for(int i = 0; i < baseSize; i += 500)
+      nextDeltaList.add(new String[] { baseList.get(i)[0], baseList.get(i)[1] });
+    List<String[]> nextMergedList = apply(mergedList, nextDeltaList);
+
+    Path folder = Files.createTempDirectory("TestIndex");
+    Path basePath = folder.resolve("base.idx");
+    Path deltaPath = folder.resolve("delta.idx");
+    Path mergedPath = folder.resolve("merged.idx");
+    Path nextDeltaPath = folder.resolve("next-delta.idx");
+    Path nextMergedPath = folder.resolve("next-merged.idx");
+    int errorCount = 0;
+    try {
+      Map<String, List<String>> baseMap = group(org, baseList);
+      MatchCoder.Index base = build(org, baseMap, basePath);
+      errorCount += check("base", base, baseMap);
+
+      MatchCoder.Index delta = build(org, group(org, deltaList), deltaPath);
+      long startTime = System.nanoTime();
+      MatchCoder.Index.merge(base, delta, mergedPath);
+      System.out.println(String.format("merge of %d records: %.1f seconds",
+        deltaList.size(), (System.nanoTime() - startTime) / 1e9));
+      MatchCoder.Index merged = MatchCoder.Index.open(mergedPath);
+      Map<String, List<String>> mergedMap = group(org, mergedList);
+      errorCount += check("merged", merged, mergedMap);
+      errorCount += checkRemovals("merged", merged, mergedMap);
+
+      // Removals of the first merge are not carried into the second one
+      MatchCoder.Index nextDelta = build(org, group(org, nextDeltaList), nextDeltaPath);
+      MatchCoder.Index.merge(merged, nextDelta, nextMergedPath);
+      MatchCoder.Index nextMerged = MatchCoder.Index.open(nextMergedPath);
+      Map<String, List<String>> nextMergedMap = group(org, nextMergedList);
+      errorCount += check("merged twice", nextMerged, nextMergedMap);
+      errorCount += checkRemovals("merged twice", nextMerged, nextMergedMap);
+
+      long nameStartTime = System.nanoTime();
+      for(String[] record: recordList)
+        base.findByName(record[1]);
+      System.out.println(String.format("findByName: %.1f microseconds per name",
+        (System.nanoTime() - nameStartTime) / 1e3 / recordList.size()));
+    }
+    finally {
+      Files.deleteIfExists(basePath);
+      Files.deleteIfExists(deltaPath);
+      Files.deleteIfExists(mergedPath);
+      Files.deleteIfExists(nextDeltaPath);
+      Files.deleteIfExists(nextMergedPath);
+      Files.deleteIfExists(folder);
+    }
+
+    if(errorCount > 0) {
+      System.out.println("Errors: " + errorCount);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,338 @@
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+import oracle.jdbc.OracleConnection;
+
+
+// Runs pipelined table functions of the Oracle integration off the
+// database, over mocked cursor and connection, the way the database calls
+// them. Rows/sec are printed for fetches with prefetch off and on, and
+// every row returned is checked against the matchcode of its name. With
+// -bulk option bulk functions are run instead, and their cost per name is
+// compared with the one of the scalar function
+
+public final class TestOra
+{
+  private static final class MockStruct
+    implements Struct
+  {
+    private final String typeName;
+    private final Object[] attributeList;
+
+    public MockStruct(String typeName, Object[] attributeList)
+    {
+      this.typeName = typeName;
+      this.attributeList = attributeList;
+    }
+
+    public String getSQLTypeName()
+    {
+      return typeName;
+    }
+
+    public Object[] getAttributes()
+    {
+      return attributeList;
+    }
+
+    public Object[] getAttributes(Map<String, Class<?>> map)
+    {
+      return attributeList;
+    }
+  }
+
+  private static final OracleConnection connection = (OracleConnection)Proxy.newProxyInstance(
+    TestOra.class.getClassLoader(), new Class<?>[] { OracleConnection.class }, (proxy, method, args) ->
+    {
+      switch(method.getName()) {
+        case "createStruct":
+          return new MockStruct((String)args[0], (Object[])args[1]);
+        case "createOracleArray":
+          return newArray((String)args[0], (Object[])args[1]);
+        case "isClosed":
+          return false;
+        case "close":
+          return null;
+        default:
+          throw new SQLFeatureNotSupportedException("mock connection: " + method.getName());
+      }
+    });
+
+  private static Array newArray(String typeName, Object[] elementList)
+  {
+    return (Array)Proxy.newProxyInstance(
+      TestOra.class.getClassLoader(), new Class<?>[] { Array.class }, (proxy, method, args) ->
+      {
+        switch(method.getName()) {
+          case "getArray":
+            return elementList;
+          case "getBaseTypeName":
+            return typeName;
+          case "free":
+            return null;
+          default:
+            throw new SQLFeatureNotSupportedException("mock array: " + method.getName());
+        }
+      });
+  }
+
+  // Cursor of id and name columns, names taken in turn from the list
+  private static ResultSet newInput(List<String> nameList, int rowCount)
+  {
+    int[] row = new int[] { -1 };
+    return (ResultSet)Proxy.newProxyInstance(
+      TestOra.class.getClassLoader(), new Class<?>[] { ResultSet.class }, (proxy, method, args) ->
+      {
+        switch(method.getName()) {
+          case "next":
+            return ++row[0] < rowCount;
+          case "getBigDecimal":
+            return BigDecimal.valueOf(row[0]);
+          case "getString":
+            return getName(nameList, row[0]);
+          case "setFetchSize":
+          case "close":
+            return null;
+          case "getStatement":
+            return null;
+          default:
+            throw new SQLFeatureNotSupportedException("mock cursor: " + method.getName());
+        }
+      });
+  }
+
+  private static final class MockDriver
+    implements Driver
+  {
+    public Connection connect(String url, Properties info)
+    {
+      return (acceptsURL(url) ? connection : null);
+    }
+
+    public boolean acceptsURL(String url)
+    {
+      return url.startsWith("jdbc:default:connection");
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+    {
+      return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion()
+    {
+      return 1;
+    }
+
+    public int getMinorVersion()
+    {
+      return 0;
+    }
+
+    public boolean jdbcCompliant()
+    {
+      return false;
+    }
+
+    public Logger getParentLogger()
+      throws SQLFeatureNotSupportedException
+    {
+      throw new SQLFeatureNotSupportedException();
+    }
+  }
+
+  // Returns rows in the order of fetch
+  private static List<Object[]> run(boolean org, List<String> nameList, int rowCount, int fetchSize)
+    throws SQLException
+  {
+    ResultSet input = newInput(nameList, rowCount);
+    Struct[] self = new Struct[1];
+    BigDecimal result = (org ? MatchCoderOrgOra.ODCITableStart(self, input)
+                             : MatchCoderPrivOra.ODCITableStart(self, input));
+    if(result.signum() != 0)
+      throw new SQLException("ODCITableStart failed");
+
+    MatchCoderOra impl = (org ? new MatchCoderOrgOra() : new MatchCoderPrivOra());
+    impl.key = (BigDecimal)self[0].getAttributes()[0];
+
+    List<Object[]> rowList = new ArrayList<>(rowCount);
+    Array[] output = new Array[1];
+    BigDecimal fetchRowCount = BigDecimal.valueOf(fetchSize);
+    while(true) {
+      output[0] = null;
+      result = (org ? ((MatchCoderOrgOra)impl).ODCITableFetch(fetchRowCount, output)
+                    : ((MatchCoderPrivOra)impl).ODCITableFetch(fetchRowCount, output));
+      if(result.signum() != 0)
+        throw new SQLException("ODCITableFetch failed");
+      if(output[0] == null)
+        break;
+      Object[] elementList = (Object[])output[0].getArray();
+      if(elementList.length > fetchSize)
+        throw new SQLException("fetch of " + elementList.length + " rows, " + fetchSize + " asked");
+      for(Object element: elementList)
+        rowList.add(((Struct)element).getAttributes());
+    }
+
+    result = (org ? ((MatchCoderOrgOra)impl).ODCITableClose() : ((MatchCoderPrivOra)impl).ODCITableClose());
+    if(result.signum() != 0)
+      throw new SQLException("ODCITableClose failed");
+    return rowList;
+  }
+
+  private static int check(boolean org, List<String> nameList, int rowCount, List<Object[]> rowList)
+  {
+    int errorCount = 0;
+    if(rowList.size() != rowCount) {
+      System.out.println("  rows returned: " + rowList.size() + ", expected: " + rowCount);
+      ++errorCount;
+    }
+    for(int i = 0; i < rowList.size(); ++i) {
+      Object[] row = rowList.get(i);
+      String name = getName(nameList, i);
+      String code = (org ? MatchCoder.calcOrg(name) : MatchCoder.calcPriv(name));
+      if(((BigDecimal)row[0]).intValue() != i || !name.equals(row[1]) || !code.equals(row[2])) {
+        if(errorCount++ < 10)
+          System.out.println("  row " + i + ": " + Arrays.toString(row) + ", expected: " + code);
+      }
+    }
+    return errorCount;
+  }
+
+  private static String getName(List<String> nameList, int i)
+  {
+    return nameList.get(i % nameList.size());
+  }
+
+  private static void runBulk(boolean org, List<String> nameList, int rowCount, int bulkSize)
+    throws SQLException
+  {
+    String[] codeList = new String[rowCount];
+    long startTime = System.nanoTime();
+    for(int i = 0; i < rowCount; ++i) {
+      String name = getName(nameList, i);
+      codeList[i] = (org ? MatchCoder.calcOrg(name) : MatchCoder.calcPriv(name));
+    }
+    long scalarTime = System.nanoTime() - startTime;
+
+    int errorCount = 0;
+    long bulkTime = 0;
+    long recordTime = 0;
+    for(int start = 0; start < rowCount; start += bulkSize) {
+      int size = Math.min(bulkSize, rowCount - start);
+      Object[] names = new Object[size];
+      Object[] records = new Object[size];
+      for(int i = 0; i < size; ++i) {
+        names[i] = getName(nameList, start + i);
+        records[i] = new MockStruct("MATCHCODER_RECORD_T",
+          new Object[] { BigDecimal.valueOf(start + i), names[i], null });
+      }
+
+      long bulkStart = System.nanoTime();
+      Array codes = (org ? MatchCoderOra.calcOrgBulk(newArray("MATCHCODER_NAME_TABLE_T", names))
+                         : MatchCoderOra.calcPrivBulk(newArray("MATCHCODER_NAME_TABLE_T", names)));
+      long recordStart = System.nanoTime();
+      Array rows = (org ? MatchCoderOra.calcOrgRecords(newArray("MATCHCODER_TABLE_T", records))
+                        : MatchCoderOra.calcPrivRecords(newArray("MATCHCODER_TABLE_T", records)));
+      bulkTime += recordStart - bulkStart;
+      recordTime += System.nanoTime() - recordStart;
+
+      Object[] bulkCodeList = (Object[])codes.getArray();
+      Object[] rowList = (Object[])rows.getArray();
+      for(int i = 0; i < size; ++i) {
+        String code = codeList[start + i];
+        Object[] row = ((Struct)rowList[i]).getAttributes();
+        if(!code.equals(bulkCodeList[i]) || ((BigDecimal)row[0]).intValue() != start + i ||
+           !names[i].equals(row[1]) || !code.equals(row[2]))
+        {
+          if(errorCount++ < 10)
+            System.out.println("  row " + (start + i) + ": " + bulkCodeList[i] + ", " +
+                               Arrays.toString(row) + ", expected: " + code);
+        }
+      }
+    }
+
+    System.out.println(String.format("%s, %d names by %d: ns/name scalar %.0f, bulk %.0f, records %.0f",
+      (org ? "org" : "priv"), rowCount, bulkSize, (double)scalarTime / rowCount,
+      (double)bulkTime / rowCount, (double)recordTime / rowCount));
+    if(errorCount > 0) {
+      System.out.println("Errors: " + errorCount);
+      System.exit(1);
+    }
+  }
+
+  public static void main(String[] args)
+    throws IOException, SQLException
+  {
+    boolean org = false;
+    int rowCount = 1000000;
+    int fetchSize = 4096;
+    int bulkSize = 0;
+    Path namePath = Paths.get(TestCorpus.DEFAULT_PATH);
+
+    for(int i = 0; i < args.length; ++i) {
+      if(args[i].equals("-org"))
+        org = true;
+      else if(args[i].equals("-rows") && i + 1 < args.length)
+        rowCount = Integer.parseInt(args[++i]);
+      else if(args[i].equals("-fetch") && i + 1 < args.length)
+        fetchSize = Integer.parseInt(args[++i]);
+      else if(args[i].equals("-names") && i + 1 < args.length)
+        namePath = Paths.get(args[++i]);
+      else if(args[i].equals("-bulk") && i + 1 < args.length)
+        bulkSize = Integer.parseInt(args[++i]);
+      else {
+        System.err.println("Usage: TestOra [-org] [-rows <count>] [-fetch <count>] [-bulk <count>]");
+        System.err.println("  [-names <file>]");
+        System.err.println("Batch size is set by -Dmatchcoder.oraBatchSize=<count>");
+        System.exit(2);
+      }
+    }
+
+    DriverManager.registerDriver(new MockDriver());
+    List<String> nameList = TestCorpus.readNames(namePath);
+
+    if(bulkSize > 0) {
+      // The first run warms up
+      runBulk(org, nameList, Math.min(rowCount, 100000), bulkSize);
+      runBulk(org, nameList, rowCount, bulkSize);
+      return;
+    }
+
+    // The first run warms up
+    run(org, nameList, Math.min(rowCount, 100000), fetchSize);
+
+    int errorCount = 0;
+    for(boolean prefetch: new boolean[] { false, true }) {
+      System.setProperty("matchcoder.oraPrefetch", String.valueOf(prefetch));
+      long startTime = System.nanoTime();
+      List<Object[]> rowList = run(org, nameList, rowCount, fetchSize);
+      double seconds = (System.nanoTime() - startTime) / 1e9;
+      System.out.println(String.format("%s, prefetch %s: %d rows, %.1f seconds, %.0f rows/sec",
+        (org ? "org" : "priv"), (prefetch ? "on" : "off"), rowList.size(), seconds,
+        rowList.size() / Math.max(seconds, 1e-3)));
+      errorCount += check(org, nameList, rowCount, rowList);
+    }
+
+    if(errorCount > 0) {
+      System.out.println("Errors: " + errorCount);
+      System.exit(1);
+    }
+  }
+}
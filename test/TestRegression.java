@@ -0,0 +1,316 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+// Checks matchcodes of the reference files, partitioned across cores.
+// Divergences from reference are reported sorted and grouped by segments
+// of the code they differ in. Ones listed in the baseline file are known,
+// so only new ones make the test fail
+
+public final class TestRegression
+{
+  private static final class Segment
+  {
+    private final String name;
+    private final int start;
+    private final int end;
+
+    public Segment(String name, int start, int end)
+    {
+      this.name = name;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private static final List<Segment> privSegmentList = Arrays.asList(
+    new Segment("family", 0, 11),
+    new Segment("name", 11, 20),
+    new Segment("patronym", 20, 24)
+  );
+
+  private static final List<Segment> orgSegmentList = Arrays.asList(
+    new Segment("legal-form", 0, 4),
+    new Segment("org-name", 4, 60)
+  );
+
+  private static final class Record
+  {
+    private String id;
+    private String name;
+    private String refCode;
+    private String code;
+  }
+
+  private static final class Divergence
+    implements Comparable<Divergence>
+  {
+    private String mode;
+    private String group;
+    private Record record;
+
+    public String getKey()
+    {
+      return mode + "\t" + record.name + "\t" + record.refCode;
+    }
+
+    public int compareTo(Divergence other)
+    {
+      int result = mode.compareTo(other.mode);
+      if(result == 0)
+        result = group.compareTo(other.group);
+      if(result == 0)
+        result = record.name.compareTo(other.record.name);
+      if(result == 0)
+        result = record.id.compareTo(other.record.id);
+      return result;
+    }
+
+    public String toString()
+    {
+      return mode + "\t" + group + "\t" + record.id + "\t" + record.name + "\t" +
+             record.refCode + "\t" + record.code;
+    }
+  }
+
+  private static int threadCount = Runtime.getRuntime().availableProcessors();
+
+  private static List<Record> readRecords(Path path)
+    throws IOException
+  {
+    List<Record> recordList = new ArrayList<>();
+    for(String line: Files.readAllLines(path, StandardCharsets.UTF_8)) {
+      String[] parts = line.split("\t");
+      if(parts.length == 3) {
+        Record record = new Record();
+        record.id = parts[0];
+        record.name = parts[1];
+        record.refCode = parts[2];
+        recordList.add(record);
+      }
+    }
+    return recordList;
+  }
+
+  private static void fail(String message)
+  {
+    System.err.println("ERROR! " + message + ". The test needs reference files of id, name and\n" +
+                       "matchcode (see data/README.TXT), given by -priv and -org options otherwise");
+    System.exit(2);
+  }
+
+  private static String getGroup(String refCode, String code, List<Segment> segmentList)
+  {
+    if(code == null || code.length() != refCode.length())
+      return "length";
+    StringBuilder group = new StringBuilder();
+    for(Segment segment: segmentList) {
+      int end = Math.min(segment.end, code.length());
+      if(segment.start < end &&
+         !code.substring(segment.start, end).equals(refCode.substring(segment.start, end)))
+      {
+        if(group.length() > 0)
+          group.append('+');
+        group.append(segment.name);
+      }
+    }
+    return (group.length() > 0 ? group.toString() : "other");
+  }
+
+  private static long percentile(long[] sortedList, double fraction)
+  {
+    if(sortedList.length == 0)
+      return 0;
+    return sortedList[Math.min(sortedList.length - 1, (int)(sortedList.length * fraction))];
+  }
+
+  // Each thread takes its own contiguous part of records and measures
+  // latency of each of them
+  private static void run(String mode, List<Record> recordList, List<Divergence> divergenceList)
+    throws InterruptedException
+  {
+    boolean org = mode.equals("org");
+    List<Segment> segmentList = (org ? orgSegmentList : privSegmentList);
+    int partCount = Math.max(1, Math.min(threadCount, recordList.size()));
+    long[][] latencyList = new long[partCount][];
+    Thread[] threadList = new Thread[partCount];
+    Throwable[] errorList = new Throwable[partCount];
+
+    long startTime = System.nanoTime();
+    for(int part = 0; part < partCount; ++part) {
+      int start = (int)((long)recordList.size() * part / partCount);
+      int end = (int)((long)recordList.size() * (part + 1) / partCount);
+      int partIndex = part;
+      latencyList[part] = new long[end - start];
+      threadList[part] = new Thread(() ->
+      {
+        try {
+          long[] latency = latencyList[partIndex];
+          for(int i = start; i < end; ++i) {
+            Record record = recordList.get(i);
+            long recordStart = System.nanoTime();
+            record.code = (org ? MatchCoder.calcOrg(record.name) : MatchCoder.calcPriv(record.name));
+            latency[i - start] = System.nanoTime() - recordStart;
+          }
+        }
+        catch(Throwable e) {
+          errorList[partIndex] = e;
+        }
+      });
+      threadList[part].start();
+    }
+    for(Thread thread: threadList)
+      thread.join();
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+
+    for(Throwable error: errorList) {
+      if(error != null)
+        throw new RuntimeException(mode + ": " + error, error);
+    }
+
+    System.out.println(String.format("%s: %d records, %.1f seconds, %.0f records/sec",
+      mode, recordList.size(), seconds, recordList.size() / Math.max(seconds, 1e-3)));
+    for(int part = 0; part < partCount; ++part) {
+      long[] latency = latencyList[part];
+      Arrays.sort(latency);
+      System.out.println(String.format(
+        "  thread %d: %d records, latency us p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+        part, latency.length, percentile(latency, 0.5) / 1e3, percentile(latency, 0.9) / 1e3,
+        percentile(latency, 0.99) / 1e3, percentile(latency, 1) / 1e3));
+    }
+
+    for(Record record: recordList) {
+      if(!record.refCode.equals(record.code)) {
+        Divergence divergence = new Divergence();
+        divergence.mode = mode;
+        divergence.group = getGroup(record.refCode, record.code, segmentList);
+        divergence.record = record;
+        divergenceList.add(divergence);
+      }
+    }
+  }
+
+  public static void main(String[] args)
+    throws IOException, InterruptedException
+  {
+    Path privPath = Paths.get("data/reference-data.txt");
+    Path orgPath = Paths.get("data/reference-data-org.txt");
+    Path baselinePath = Paths.get("regression-baseline.txt");
+    Path reportPath = Paths.get("regression-report.txt");
+    boolean updateBaseline = false;
+    boolean isPrivGiven = false;
+    boolean isOrgGiven = false;
+
+    for(int i = 0; i < args.length; ++i) {
+      if(args[i].equals("-priv") && i + 1 < args.length) {
+        privPath = Paths.get(args[++i]);
+        isPrivGiven = true;
+      }
+      else if(args[i].equals("-org") && i + 1 < args.length) {
+        orgPath = Paths.get(args[++i]);
+        isOrgGiven = true;
+      }
+      else if(args[i].equals("-baseline") && i + 1 < args.length)
+        baselinePath = Paths.get(args[++i]);
+      else if(args[i].equals("-report") && i + 1 < args.length)
+        reportPath = Paths.get(args[++i]);
+      else if(args[i].equals("-threads") && i + 1 < args.length)
+        threadCount = Integer.parseInt(args[++i]);
+      else if(args[i].equals("-update-baseline"))
+        updateBaseline = true;
+      else {
+        System.err.println("Usage: TestRegression [-priv <file>] [-org <file>] [-baseline <file>]");
+        System.err.println("  [-report <file>] [-threads <count>] [-update-baseline]");
+        System.exit(2);
+      }
+    }
+
+    // Reference file given but missing, or no reference records at all,
+    // would pass with no divergences while checking nothing
+    if(isPrivGiven && !Files.exists(privPath))
+      fail(privPath + " is not found");
+    if(isOrgGiven && !Files.exists(orgPath))
+      fail(orgPath + " is not found");
+    List<Divergence> divergenceList = new ArrayList<>();
+    Set<String> recordKeySet = new HashSet<>();
+    if(Files.exists(privPath)) {
+      List<Record> recordList = readRecords(privPath);
+      for(Record record: recordList)
+        recordKeySet.add("priv\t" + record.name + "\t" + record.refCode);
+      run("priv", recordList, divergenceList);
+    }
+    else
+      System.out.println("priv: no reference file " + privPath);
+    if(Files.exists(orgPath)) {
+      List<Record> recordList = readRecords(orgPath);
+      for(Record record: recordList)
+        recordKeySet.add("org\t" + record.name + "\t" + record.refCode);
+      run("org", recordList, divergenceList);
+    }
+    else
+      System.out.println("org: no reference file " + orgPath);
+    if(recordKeySet.isEmpty())
+      fail("no lines of id, name and matchcode in " + privPath + " or " + orgPath);
+    Collections.sort(divergenceList);
+
+    // Baseline lines are mode, name and reference code, tab separated
+    Set<String> baselineSet = new HashSet<>();
+    if(Files.exists(baselinePath)) {
+      for(String line: Files.readAllLines(baselinePath, StandardCharsets.UTF_8)) {
+        if(!line.isEmpty() && !line.startsWith("#"))
+          baselineSet.add(line);
+      }
+    }
+
+    int newCount = 0;
+    Set<String> divergentSet = new HashSet<>();
+    try(PrintWriter report = new PrintWriter(Files.newBufferedWriter(reportPath, StandardCharsets.UTF_8))) {
+      report.println("# status, mode, segments, id, name, reference code, code");
+      for(Divergence divergence: divergenceList) {
+        boolean known = baselineSet.contains(divergence.getKey());
+        if(!known)
+          ++newCount;
+        divergentSet.add(divergence.getKey());
+        report.println((known ? "known\t" : "new\t") + divergence);
+      }
+      List<String> fixedList = new ArrayList<>();
+      for(String key: baselineSet) {
+        if(recordKeySet.contains(key) && !divergentSet.contains(key))
+          fixedList.add(key);
+      }
+      Collections.sort(fixedList);
+      for(String key: fixedList)
+        report.println("fixed\t" + key);
+      System.out.println(String.format("Divergences: %d, new: %d, fixed: %d, see %s",
+        divergenceList.size(), newCount, fixedList.size(), reportPath));
+    }
+
+    if(updateBaseline) {
+      // Known divergences of records not checked this time are kept
+      List<String> keyList = new ArrayList<>(divergentSet);
+      for(String key: baselineSet) {
+        if(!recordKeySet.contains(key))
+          keyList.add(key);
+      }
+      Collections.sort(keyList);
+      try(PrintWriter baseline = new PrintWriter(Files.newBufferedWriter(baselinePath, StandardCharsets.UTF_8))) {
+        baseline.println("# mode, name, reference code of known divergences");
+        for(String key: keyList)
+          baseline.println(key);
+      }
+      System.out.println("Baseline updated: " + baselinePath);
+    }
+    else if(newCount > 0)
+      System.exit(1);
+  }
+}
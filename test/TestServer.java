@@ -0,0 +1,143 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// Load test of the running MatchCoderServer: as many client threads as
+// given send single name requests (or batch ones, with -batch option)
+// until all names are sent, and each code got back is checked against the
+// one calculated here. Requests/sec, names/sec and latency percentiles are
+// printed, followed by metrics of the server
+
+public final class TestServer
+{
+  private static String request(String url, String body)
+    throws IOException
+  {
+    HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+    if(body != null) {
+      conn.setRequestMethod("POST");
+      conn.setDoOutput(true);
+      try(OutputStream out = conn.getOutputStream()) {
+        out.write(body.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    int status = conn.getResponseCode();
+    try(InputStream in = (status < 400 ? conn.getInputStream() : conn.getErrorStream())) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] chunk = new byte[8192];
+      for(int count; in != null && (count = in.read(chunk)) >= 0;)
+        bytes.write(chunk, 0, count);
+      String text = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+      if(status != 200)
+        throw new IOException("HTTP " + status + ": " + text.trim());
+      return text;
+    }
+  }
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    String baseUrl = "http://127.0.0.1:8080";
+    boolean org = false;
+    int threadCount = 64;
+    int requestCount = 100000;
+    int batchSize = 0;
+    Path namePath = Paths.get(TestCorpus.DEFAULT_PATH);
+
+    try {
+      for(int i = 0; i < args.length; ++i) {
+        switch(args[i]) {
+          case "-url": baseUrl = args[++i]; break;
+          case "-org": org = true; break;
+          case "-threads": threadCount = Integer.parseInt(args[++i]); break;
+          case "-requests": requestCount = Integer.parseInt(args[++i]); break;
+          case "-batch": batchSize = Integer.parseInt(args[++i]); break;
+          case "-names": namePath = Paths.get(args[++i]); break;
+          default: throw new IllegalArgumentException(args[i]);
+        }
+      }
+    }
+    catch(ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+      System.err.println("Usage: TestServer [-url <base url>] [-org] [-threads <count>]\n" +
+                         "  [-requests <count>] [-batch <size>] [-names <file>]");
+      System.exit(2);
+    }
+
+    List<String> nameList = TestCorpus.readNames(namePath);
+    String path = (org ? "/org" : "/priv");
+    int namesPerRequest = Math.max(batchSize, 1);
+    String url = baseUrl + path + (batchSize > 0 ? "/batch" : "?name=");
+
+    AtomicInteger next = new AtomicInteger();
+    AtomicInteger errorCount = new AtomicInteger();
+    long[] latencyList = new long[requestCount];
+    final int total = requestCount;
+    final boolean isBatch = batchSize > 0;
+    final boolean isOrg = org;
+    Thread[] threadList = new Thread[threadCount];
+    long startTime = System.nanoTime();
+    for(int t = 0; t < threadCount; ++t) {
+      threadList[t] = new Thread(() ->
+      {
+        for(int r; (r = next.getAndIncrement()) < total;) {
+          String[] names = new String[namesPerRequest];
+          StringBuilder body = new StringBuilder();
+          for(int i = 0; i < names.length; ++i) {
+            names[i] = nameList.get((int)(((long)r * namesPerRequest + i) % nameList.size()));
+            body.append(names[i]).append('\n');
+          }
+          long requestTime = System.nanoTime();
+          try {
+            String text = (isBatch ? request(url, body.toString())
+                                   : request(url + URLEncoder.encode(names[0], "UTF-8"), null));
+            latencyList[r] = System.nanoTime() - requestTime;
+            String[] codes = (isBatch ? text.split("\n", -1) : new String[] { text });
+            for(int i = 0; i < names.length; ++i) {
+              String expected = (isOrg ? MatchCoder.calcOrg(names[i]) : MatchCoder.calcPriv(names[i]));
+              if(i >= codes.length || !codes[i].equals(expected)) {
+                if(errorCount.incrementAndGet() <= 10)
+                  System.out.println(names[i] + ": " + (i < codes.length ? codes[i] : null) + " <> " + expected);
+              }
+            }
+          }
+          catch(IOException e) {
+            latencyList[r] = System.nanoTime() - requestTime;
+            if(errorCount.incrementAndGet() <= 10)
+              System.out.println(names[0] + ": " + e.getMessage());
+          }
+        }
+      });
+      threadList[t].start();
+    }
+    for(Thread thread: threadList)
+      thread.join();
+
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    Arrays.sort(latencyList);
+    System.out.println(String.format(
+      "%d requests of %d names by %d threads: %.0f requests/sec, %.0f names/sec, " +
+      "latency p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+      requestCount, namesPerRequest, threadCount, requestCount / seconds,
+      (double)requestCount * namesPerRequest / seconds,
+      latencyList[requestCount / 2] / 1e6, latencyList[(int)(requestCount * 0.99)] / 1e6,
+      latencyList[requestCount - 1] / 1e6));
+
+    System.out.print(request(baseUrl + "/metrics", null));
+
+    if(errorCount.get() > 0) {
+      System.out.println("Errors: " + errorCount.get());
+      System.exit(1);
+    }
+  }
+}
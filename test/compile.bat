@@ -1,8 +1,8 @@
 @echo off
 
 setlocal
-set CLASSPATH=../build/MatchCoder.jar
-set SRC=Test.java TestBatch.java
+set CLASSPATH=../build/MatchCoder.jar;../build/MatchCoderOra.jar;../jar/CartridgeServices.jar;%ORACLE_HOME%/jdbc/lib/*
+set SRC=Test.java TestBatch.java TestRegression.java TestOra.java TestIndex.java TestServer.java TestCorpus.java
 
 set FLAGS=-Xlint:deprecation -Xlint:unchecked -encoding utf8
 
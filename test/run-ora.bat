@@ -0,0 +1,7 @@
+@echo off
+
+setlocal
+set CLASSPATH=build;../build/MatchCoder.jar;../build/MatchCoderOra.jar;../jar/CartridgeServices.jar;%ORACLE_HOME%/jdbc/lib/*
+set CLASS=TestOra
+
+java -cp %CLASSPATH% %CLASS% %*
@@ -0,0 +1,7 @@
+@echo off
+
+setlocal
+set CLASSPATH=build;../build/MatchCoder.jar
+set CLASS=TestServer
+
+java -cp %CLASSPATH% %CLASS% %*